@@ -1,6 +1,5 @@
 package nesemu;
 
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -16,7 +15,7 @@ import java.util.List;
  * https://www.nesdev.org/wiki/Mirroring#Memory_Mirroring
  */
 
-public class AddressSpace implements Serializable {
+public class AddressSpace {
     private final List<MemoryMapped> devices;
 
     public AddressSpace() {
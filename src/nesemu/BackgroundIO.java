@@ -0,0 +1,40 @@
+package nesemu;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/* The thread doing the file work the emulation thread mustn't wait for, such
+ * as opening and flushing battery saves (see BatterySave), opening save state
+ * slots, or reading and writing boot snapshots (see BootCache). Tasks run one at a time, in the order they're submitted, so a
+ * file is never written by one task while another reads it.
+ */
+
+final class BackgroundIO {
+    private static final ScheduledExecutorService EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "Background I/O");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private BackgroundIO() {
+
+    }
+
+    static <T> Future<T> submit(Callable<T> task) {
+        return EXECUTOR.submit(task);
+    }
+
+    static Future<?> submit(Runnable task) {
+        return EXECUTOR.submit(task);
+    }
+
+    static ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delay,
+            TimeUnit unit) {
+        return EXECUTOR.scheduleWithFixedDelay(task, delay, delay, unit);
+    }
+}
@@ -0,0 +1,133 @@
+package nesemu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/* Some cartridges kept their PRG-RAM powered by a battery, so that games could
+ * save progress (iNES flag 6 bit 1, see Cartridge.hasPrgRAM). Emulators store
+ * this RAM in a .sav file next to the ROM.
+ *
+ * The .sav file is memory-mapped, and the emulation thread never touches it:
+ * it's opened and read on a background thread (see openAsync()), after which
+ * the emulation thread only has to copy the RAM read into the cartridge (see
+ * install()). From then on, writes to PRG-RAM only mark it as dirty (see
+ * Cartridge.writePrgRAMByte()), and the background thread copies it to the
+ * mapping and forces it to disk at most once every FLUSH_INTERVAL_SECONDS, as
+ * well as when the save is closed (see closeAsync()).
+ */
+
+public class BatterySave {
+    private static final int FLUSH_INTERVAL_SECONDS = 3;
+
+    private final Cartridge cartridge;
+    private final MappedByteBuffer mapping;
+    private final ScheduledFuture<?> flushTask;
+    // The RAM saved in the file, until it's installed into the cartridge (null
+    // if the file is new).
+    private byte loadedRAM[];
+
+    /* Maps the given file (creating it if needed) and reads the RAM saved in
+     * it, if any, to be installed later into the cartridge's PRG-RAM. Runs on
+     * the background thread (see BackgroundIO).
+     */
+    private BatterySave(File file, Cartridge cartridge) throws IOException {
+        this.cartridge = cartridge;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+                FileChannel channel = randomAccessFile.getChannel()) {
+            final boolean isNewFile = channel.size() == 0;
+            mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    cartridge.prgRAM.length);
+            if (!isNewFile) {
+                loadedRAM = new byte[cartridge.prgRAM.length];
+                mapping.get(loadedRAM);
+            }
+        }
+        flushTask = BackgroundIO.scheduleWithFixedDelay(this::flush,
+                FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // The save file of a ROM has the same name, with a .sav extension. Games
+    // inside zip archives are saved next to the archive.
+    public static File getDefaultFile(String romFilePath) {
+        if (ZipImageCache.isArchiveEntryPath(romFilePath))
+            return new File(new File(romFilePath.substring(0, romFilePath.indexOf(
+                    RomLibrary.ARCHIVE_ENTRY_SEPARATOR))).getParentFile(),
+                    Cartridge.getNameFromPath(romFilePath) + ".sav");
+        final int extensionStart = romFilePath.lastIndexOf('.');
+        return new File((extensionStart > romFilePath.lastIndexOf(File.separatorChar) ?
+                romFilePath.substring(0, extensionStart) : romFilePath) + ".sav");
+    }
+
+    /* Opens the save of the given cartridge in the background. Only
+     * cartridges with battery-backed PRG-RAM are saved; the future holds null
+     * for the rest.
+     */
+    public static Future<BatterySave> openAsync(String romFilePath,
+            Cartridge cartridge) {
+        if (!cartridge.hasPrgRAM)
+            return CompletableFuture.completedFuture(null);
+        final File file = getDefaultFile(romFilePath);
+        return BackgroundIO.submit(() -> new BatterySave(file, cartridge));
+    }
+
+    /* Copies the RAM read from the file into the cartridge's PRG-RAM. Must be
+     * called by the emulation thread once the save is open, before the game
+     * runs, as it doesn't mark the RAM as dirty.
+     */
+    public void install() {
+        if (loadedRAM != null)
+            System.arraycopy(loadedRAM, 0, cartridge.prgRAM, 0, loadedRAM.length);
+        loadedRAM = null;
+    }
+
+    /* Closes a save returned by openAsync(), even if it isn't open yet: the
+     * background thread opens saves in order, so by the time this runs it's
+     * either open or has failed to. The future completes once the RAM has been
+     * flushed.
+     */
+    public static Future<?> closeAsync(Future<BatterySave> save) {
+        return BackgroundIO.submit(() -> {
+            try {
+                if (save.get() != null)
+                    save.get().close();
+            } catch (ExecutionException ex) {
+                // Already reported to whoever opened it.
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /* The RAM is copied while the game may still be writing to it, but any
+     * write after the copy starts marks it as dirty again, so it will be
+     * copied once more on the next flush. Only runs on the background thread.
+     */
+    private void flush() {
+        if (!cartridge.clearPrgRAMDirty())
+            return;
+        mapping.position(0);
+        mapping.put(cartridge.prgRAM);
+        mapping.force();
+    }
+
+    // Stops flushing periodically, and flushes one last time.
+    private void close() {
+        flushTask.cancel(false);
+        try {
+            flush();
+        } catch (RuntimeException ex) {
+            Logger.getLogger(BatterySave.class.getName())
+                    .log(Level.SEVERE, null, ex);
+        }
+    }
+}
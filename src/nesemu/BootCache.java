@@ -0,0 +1,185 @@
+package nesemu;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/* Most games spend their first frames after power-on clearing RAM, waiting
+ * for the PPU to warm up and showing splash screens, none of which depends on
+ * the player's input. This cache stores, for each game, a snapshot of the NES
+ * at the start of the frame in which the controller is first polled, so that
+ * later runs of the same game can skip straight to that point with restore().
+ *
+ * Snapshots are recorded by calling recordFrame() at the start of each frame
+ * of a freshly powered-on NES; they are kept in memory as well as in files
+ * named after the ROM hash, the snapshot format version and PROFILE_VERSION.
+ * Those files are only read and written in the background (see BackgroundIO):
+ * a game's snapshot is read as soon as it's loaded (see preload()), and the
+ * emulation thread only copies it into the NES.
+ *
+ * Games with battery-backed PRG-RAM are never cached, since their boot
+ * sequence may depend on the contents of their save.
+ */
+
+public class BootCache {
+    /* Must be increased whenever a change to the emulation alters what games
+     * do before their first controller poll (e.g. CPU or PPU timing), since
+     * snapshots recorded before the change would no longer match a cold boot.
+     */
+    public static final int PROFILE_VERSION = 1;
+
+    // Games that haven't polled the controller after a minute are assumed to
+    // be waiting for something else.
+    private static final int MAX_BOOT_FRAMES = 60 * 60;
+
+    private final File directory;
+    // Each holds null if there's no usable snapshot.
+    private final Map<String, Future<StateBuffer>> snapshots;
+
+    // Snapshot at the start of the current frame, while recording.
+    private StateBuffer frameStartState;
+    private Cartridge recordedCartridge;
+    private int recordedFrames;
+
+    public BootCache(File directory) {
+        this.directory = directory;
+        snapshots = new ConcurrentHashMap<>();
+    }
+
+    // The cache is disabled unless the nesemu.bootCache system property is
+    // set to true.
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("nesemu.bootCache");
+    }
+
+    // ~/.nesemu/boot/
+    public static File getDefaultDirectory() {
+        return new File(System.getProperty("user.home"),
+                ".nesemu" + File.separator + "boot");
+    }
+
+    private static String getKey(Cartridge cartridge) {
+        return cartridge.getROMHashString() + "-" + NES.STATE_FORMAT_VERSION +
+                "-" + PROFILE_VERSION;
+    }
+
+    private File getFile(String key) {
+        return new File(directory, key + ".boot");
+    }
+
+    /* Starts reading the snapshot of the given cartridge (whose snapshots
+     * have the given size) in the background, unless it's already been read.
+     * Returns whether it's still being read.
+     */
+    public boolean preload(Cartridge cartridge, int stateSize) {
+        if (cartridge.hasPrgRAM)
+            return false;
+        return !snapshots.computeIfAbsent(getKey(cartridge), key ->
+                BackgroundIO.submit(() -> read(key, stateSize))).isDone();
+    }
+
+    private StateBuffer read(String key, int stateSize) {
+        final File file = getFile(key);
+        if (!file.isFile())
+            return null;
+        try {
+            final byte bytes[] = Files.readAllBytes(file.toPath());
+            if (bytes.length != stateSize)
+                return null;
+            final StateBuffer state = new StateBuffer(bytes.length);
+            System.arraycopy(bytes, 0, state.array(), 0, bytes.length);
+            state.setSize(bytes.length);
+            return state;
+        } catch (IOException ex) {
+            Logger.getLogger(BootCache.class.getName())
+                    .log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    /* Loads the cached snapshot of the NES's cartridge into it. Returns false
+     * (leaving the NES untouched) if there is no usable snapshot, or it hasn't
+     * been read yet (see preload()), in which case one may be recorded with
+     * recordFrame().
+     */
+    public boolean restore(NES nes) {
+        final Future<StateBuffer> snapshot = snapshots.get(getKey(nes.cartridge));
+        if (nes.cartridge.hasPrgRAM || snapshot == null || !snapshot.isDone())
+            return false;
+        try {
+            final StateBuffer state = snapshot.get();
+            if (state == null || state.size() != nes.getStateSize())
+                return false;
+            nes.loadState(state);
+            return true;
+        } catch (ExecutionException | IllegalArgumentException ex) {
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /* To be called at the start of each frame, from power-on, until it returns
+     * false. Once the controller has been polled, the snapshot taken at the
+     * start of the previous frame (the one in which the poll happened) is
+     * stored in the cache.
+     */
+    public boolean recordFrame(NES nes) {
+        if (nes.cartridge.hasPrgRAM)
+            return false;
+        if (recordedCartridge != nes.cartridge) {
+            recordedCartridge = nes.cartridge;
+            recordedFrames = 0;
+            if (frameStartState == null ||
+                    frameStartState.capacity() < nes.getStateSize())
+                frameStartState = new StateBuffer(nes);
+        }
+        if (nes.controller.hasBeenPolled()) {
+            recordedCartridge = null;
+            if (recordedFrames > 0)
+                store(getKey(nes.cartridge), frameStartState);
+            return false;
+        }
+        if (++recordedFrames > MAX_BOOT_FRAMES) {
+            recordedCartridge = null;
+            return false;
+        }
+        nes.saveState(frameStartState);
+        return true;
+    }
+
+    private void store(String key, StateBuffer state) {
+        final StateBuffer copy = new StateBuffer(state.size());
+        copy.copyFrom(state);
+        snapshots.put(key, CompletableFuture.completedFuture(copy));
+        BackgroundIO.submit(() -> write(key, copy));
+    }
+
+    // Written to a temporary file first, so that a concurrent run never reads
+    // a partially written snapshot.
+    private void write(String key, StateBuffer state) {
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Could not create directory " + directory);
+            final File file = getFile(key);
+            final File temporaryFile = File.createTempFile(key, ".tmp", directory);
+            Files.write(temporaryFile.toPath(),
+                    Arrays.copyOf(state.array(), state.size()));
+            Files.move(temporaryFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            Logger.getLogger(BootCache.class.getName())
+                    .log(Level.SEVERE, null, ex);
+        }
+    }
+}
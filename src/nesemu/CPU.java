@@ -1,6 +1,6 @@
 package nesemu;
 
-import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /* The CPU used in the NES was called the Ricoh 2A03, which was essentially a
  * modified version of the popular 6502 processor. They are both 8-bit CPUs with
@@ -174,6 +174,38 @@ public class CPU extends MemoryMapped {
         cyclesUntilNextInstruction = 7;
     }
 
+    @Override
+    void writeState(ByteBuffer buffer) {
+        buffer.put(regA).put(regY).put(regX).put(regS).put(regP).putShort(regPC);
+        buffer.put(regOAMDMA).putInt(dmaCyclesLeft).put(dmaBuffer);
+        buffer.putShort(cyclesUntilNextInstruction).putShort(operandEffectiveAddress);
+        buffer.putInt(cycleCount);
+        buffer.put((byte)((isMemoryOperand ? 1 : 0) |
+                (branchDestinationPageCrossed ? 2 : 0) |
+                (requestNMI ? 4 : 0) | (assertNMI ? 8 : 0)));
+    }
+
+    @Override
+    void readState(ByteBuffer buffer) {
+        regA = buffer.get();
+        regY = buffer.get();
+        regX = buffer.get();
+        regS = buffer.get();
+        regP = buffer.get();
+        regPC = buffer.getShort();
+        regOAMDMA = buffer.get();
+        dmaCyclesLeft = buffer.getInt();
+        dmaBuffer = buffer.get();
+        cyclesUntilNextInstruction = buffer.getShort();
+        operandEffectiveAddress = buffer.getShort();
+        cycleCount = buffer.getInt();
+        final byte flags = buffer.get();
+        isMemoryOperand = (flags & 1) != 0;
+        branchDestinationPageCrossed = (flags & 2) != 0;
+        requestNMI = (flags & 4) != 0;
+        assertNMI = (flags & 8) != 0;
+    }
+
     private void serviceNMI() {
         /* NMI's (Non-Maskable Interrupts) are issued by the PPU when it reaches
          * VBlank if it has been configured to do so. The PC and P registers
@@ -262,18 +294,14 @@ public class CPU extends MemoryMapped {
         return address;
     }
 
-    private interface SerializableRunnable extends Serializable, Runnable {
-
-    }
-
-    private class Instruction implements Serializable {
+    private class Instruction {
         final String name;
         final AddressingMode addressingMode;
         final int cycles;
-        final SerializableRunnable operation;
+        final Runnable operation;
 
         public Instruction(String name, AddressingMode addressingMode,
-                int cycles, SerializableRunnable operation) {
+                int cycles, Runnable operation) {
             this.name = name;
             this.addressingMode = addressingMode;
             this.cycles = cycles;
@@ -1,8 +1,15 @@
 package nesemu;
 
-import java.io.DataInputStream;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /* NES games were distributed in cartridges. They usually had separate memories
  * for the games' code (PRG-ROM, mapped to the CPU's address space) and graphics
@@ -19,7 +26,6 @@ import java.io.IOException;
  */
 
 public abstract class Cartridge extends MemoryMapped {
-    private final static int PRG_ROM_BLOCK_SIZE = 16384;
     private final static int CHR_ROM_BLOCK_SIZE = 8192;
 
     public final byte prgROM[];
@@ -31,7 +37,19 @@ public abstract class Cartridge extends MemoryMapped {
     public boolean hasPrgRAM;
     public boolean hasChrRAM;
 
+    // Set whenever PRG-RAM is modified, so that battery saves (see
+    // BatterySave) are only written when needed.
+    private volatile boolean isPrgRAMDirty;
+
+    // SHA-1 hash of the ROM contents, which identifies the game in state
+    // snapshots without having to include the ROMs themselves.
+    public final byte romHash[];
+    // Keeps the ROMs (shared with other cartridges of the same game) in the
+    // pool for as long as this cartridge is alive.
+    private final RomPool.Image romImage;
+
     private String name = "";
+    private INESHeader iNESHeader;
 
     /* Although the PPU's address space can fit 4 nametables, usually only two
      * could be stored in memory. Thus, a mirroring scheme was necessary, such
@@ -48,14 +66,34 @@ public abstract class Cartridge extends MemoryMapped {
         FOUR_NAMETABLES
     }
 
+    private static final Mirroring[] MIRRORING_VALUES = Mirroring.values();
+
+    /* The given ROMs may be replaced by identical ones already in use by other
+     * cartridges (see RomPool), so they must not be modified afterwards.
+     */
     public Cartridge(byte[] prgROM, byte[] chrROM, Mirroring mirroring,
             boolean hasPrgRAM, boolean hasChrRAM) {
-        this.prgROM = prgROM;
-        this.chrROM = chrROM;
         this.prgRAM = new byte[0x2000];
         this.mirroring = mirroring;
         this.hasPrgRAM = hasPrgRAM;
         this.hasChrRAM = hasChrRAM;
+        this.romHash = computeROMHash(prgROM, chrROM);
+        this.romImage = RomPool.intern(romHash, prgROM, hasChrRAM ? null : chrROM);
+        this.prgROM = romImage.prgROM;
+        this.chrROM = hasChrRAM ? chrROM : romImage.chrROM;
+    }
+
+    private byte[] computeROMHash(byte[] prgROM, byte[] chrROM) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(prgROM);
+            if (!hasChrRAM)
+                digest.update(chrROM);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-1
+            throw new IllegalStateException(ex);
+        }
     }
 
     // To be implemented by Cartridge subclasses corresponding to a specific
@@ -91,6 +129,23 @@ public abstract class Cartridge extends MemoryMapped {
 
     public void writePrgRAMByte(short address, byte value) {
         prgRAM[Short.toUnsignedInt(address) % prgRAM.length] = value;
+        markPrgRAMDirty();
+    }
+
+    // Written even if it's already set: the volatile write is what makes the
+    // byte just written visible to the thread flushing it (which reads the
+    // flag before copying the RAM). Skipping it could leave that write out of
+    // the next flush, and of every other one until the RAM changes again.
+    final void markPrgRAMDirty() {
+        isPrgRAMDirty = true;
+    }
+
+    // Returns whether PRG-RAM was modified since the last call.
+    final boolean clearPrgRAMDirty() {
+        if (!isPrgRAMDirty)
+            return false;
+        isPrgRAMDirty = false;
+        return true;
     }
 
     public byte ppuReadByte(short address) {
@@ -106,10 +161,42 @@ public abstract class Cartridge extends MemoryMapped {
 
     }
 
+    /* Only the cartridge's RAM (if any) is included in state snapshots; ROM
+     * contents are identified by romHash instead. Subclasses must append the
+     * state of their mapper's registers.
+     */
+    @Override
+    void writeState(ByteBuffer buffer) {
+        buffer.put((byte)mirroring.ordinal());
+        if (hasPrgRAM)
+            buffer.put(prgRAM);
+        if (hasChrRAM)
+            buffer.put(chrROM);
+    }
+
+    @Override
+    void readState(ByteBuffer buffer) {
+        mirroring = MIRRORING_VALUES[buffer.get()];
+        if (hasPrgRAM) {
+            buffer.get(prgRAM);
+            markPrgRAMDirty();
+        }
+        if (hasChrRAM)
+            buffer.get(chrROM);
+    }
+
     public String getName() {
         return name;
     }
 
+    // romHash as a string of hexadecimal digits, e.g. for naming files.
+    public String getROMHashString() {
+        final StringBuilder builder = new StringBuilder();
+        for (byte hashByte : romHash)
+            builder.append(String.format("%02x", hashByte));
+        return builder.toString();
+    }
+
     /* The "de facto" file format for NES games is the .nes or iNES format
      * (https://www.nesdev.org/wiki/INES). Although the format has many special
      * fields to support as many games as possible, this method only uses the
@@ -117,37 +204,120 @@ public abstract class Cartridge extends MemoryMapped {
      */
     public static Cartridge fromINESFile(String filePath) throws IOException,
             UnsupportedMapperException, IllegalArgumentException {
-        DataInputStream stream = new DataInputStream(new FileInputStream(filePath));
-        final byte iNESHeader[] = { 0x4E, 0x45, 0x53, 0x1A };
-        for (byte headerByte : iNESHeader)
-            if (stream.readByte() != headerByte)
-                throw new IllegalArgumentException("Invalid iNES header");
-        final byte prgROMSize = stream.readByte();
-        final byte chrROMSize = stream.readByte();
-        final byte flags6 = stream.readByte();
-        final byte flags7 = stream.readByte();
-        final int mapperNumber = ((flags6 & 0xF0) >>> 4) | (flags7 & 0xF0);
-        Mirroring mirroring;
-        if ((flags6 & 8) != 0)
-            mirroring = Mirroring.FOUR_NAMETABLES;
-        else if ((flags6 & 1) != 0)
-            mirroring = Mirroring.VERTICAL;
-        else
-            mirroring = Mirroring.HORIZONTAL;
-        stream.readNBytes(8);
-        // Assume no trainer
-        boolean hasChrRAM = chrROMSize == 0;
-        boolean hasPrgRAM = (flags6 & 2) != 0;
-        byte prgROM[] = stream.readNBytes(PRG_ROM_BLOCK_SIZE * prgROMSize);
-        byte chrROM[] = hasChrRAM ? new byte[CHR_ROM_BLOCK_SIZE] :
-                stream.readNBytes(CHR_ROM_BLOCK_SIZE * chrROMSize);
-        Cartridge cartridge =
-                assignMapper(prgROM, chrROM, mirroring, hasPrgRAM, hasChrRAM, mapperNumber);
-        cartridge.name = filePath.substring(filePath.lastIndexOf("/") + 1,
-                filePath.lastIndexOf('.'));
+        // ROMs inside zip archives (see ZipImageCache) are decompressed
+        // straight into memory.
+        if (ZipImageCache.isArchiveEntryPath(filePath))
+            return fromINESBuffer(ByteBuffer.wrap(ZipImageCache.getImage(filePath)),
+                    getNameFromPath(filePath));
+        // The file is mapped rather than read, so that the ROMs are copied
+        // straight from the page cache in one bulk operation each.
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath),
+                StandardOpenOption.READ)) {
+            return fromINESBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size()), getNameFromPath(filePath));
+        }
+    }
+
+    // The name of a game is its file name, without the extension.
+    static String getNameFromPath(String filePath) {
+        final int nameStart = Math.max(filePath.lastIndexOf('/'),
+                filePath.lastIndexOf(File.separatorChar)) + 1;
+        final int extensionStart = filePath.lastIndexOf('.');
+        return filePath.substring(nameStart,
+                extensionStart > nameStart ? extensionStart : filePath.length());
+    }
+
+    // Reads one iNES image starting at the buffer's position, which is
+    // advanced past it.
+    public static Cartridge fromINESBuffer(ByteBuffer buffer, String name)
+            throws UnsupportedMapperException, IllegalArgumentException {
+        final INESHeader header = INESHeader.read(buffer);
+        if (buffer.remaining() < header.getImageSize() - INESHeader.SIZE)
+            throw new IllegalArgumentException("Truncated iNES image");
+        buffer.position(buffer.position() + header.getTrainerSize());
+        final byte prgROM[] = new byte[header.prgROMSize];
+        buffer.get(prgROM);
+        final byte chrROM[] = new byte[header.hasChrRAM ?
+                CHR_ROM_BLOCK_SIZE : header.chrROMSize];
+        if (!header.hasChrRAM)
+            buffer.get(chrROM);
+        return fromINESImage(header, prgROM, chrROM, name);
+    }
+
+    // Reads exactly one iNES image from the stream, without closing it.
+    public static Cartridge fromINESStream(InputStream in, String name)
+            throws IOException, UnsupportedMapperException, IllegalArgumentException {
+        final byte headerBytes[] = readFully(in, INESHeader.SIZE);
+        final INESHeader header = INESHeader.read(ByteBuffer.wrap(headerBytes));
+        readFully(in, header.getTrainerSize());
+        final byte prgROM[] = readFully(in, header.prgROMSize);
+        final byte chrROM[] = header.hasChrRAM ? new byte[CHR_ROM_BLOCK_SIZE] :
+                readFully(in, header.chrROMSize);
+        return fromINESImage(header, prgROM, chrROM, name);
+    }
+
+    private static byte[] readFully(InputStream in, int length)
+            throws IOException, IllegalArgumentException {
+        final byte bytes[] = in.readNBytes(length);
+        if (bytes.length != length)
+            throw new IllegalArgumentException("Truncated iNES image");
+        return bytes;
+    }
+
+    private static Cartridge fromINESImage(INESHeader header, byte[] prgROM,
+            byte[] chrROM, String name) throws UnsupportedMapperException {
+        Cartridge cartridge = assignMapper(prgROM, chrROM, header.mirroring,
+                header.hasPrgRAM, header.hasChrRAM, header.mapperNumber);
+        cartridge.name = name;
+        cartridge.iNESHeader = header;
         return cartridge;
     }
 
+    /* Builds a cartridge out of the ROMs with the given hash shared in RomPool
+     * (i. e. those of a cartridge already loaded), or returns null if there
+     * are none.
+     */
+    static Cartridge fromRomPool(byte[] romHash, INESHeader header, String name)
+            throws UnsupportedMapperException {
+        final RomPool.Image image = RomPool.find(romHash);
+        if (image == null || image.prgROM.length != header.prgROMSize ||
+                (header.hasChrRAM ? image.chrROM != null :
+                image.chrROM == null || image.chrROM.length != header.chrROMSize))
+            return null;
+        return fromINESImage(header, image.prgROM, header.hasChrRAM ?
+                new byte[CHR_ROM_BLOCK_SIZE] : image.chrROM, name);
+    }
+
+    // The iNES header the cartridge was loaded from, as written by
+    // writeINESImage().
+    byte[] getINESHeaderBytes() {
+        final byte header[] = iNESHeader.getBytes().clone();
+        // The trainer (if any) is skipped when loading, so it's not written.
+        header[6] &= ~4;
+        return header;
+    }
+
+    // Writes the cartridge's ROMs back in iNES format, as read by
+    // fromINESStream().
+    public void writeINESImage(OutputStream out) throws IOException {
+        out.write(getINESHeaderBytes());
+        out.write(prgROM);
+        if (!hasChrRAM)
+            out.write(chrROM);
+    }
+
+    // Whether assignMapper() has a Cartridge subclass for the given mapper.
+    public static boolean isMapperSupported(int mapperNumber) {
+        switch (mapperNumber) {
+            case 0:
+            case 1:
+            case 2:
+            case 3:
+                return true;
+        }
+        return false;
+    }
+
     private static Cartridge assignMapper(byte prgROM[], byte chrROM[],
             Mirroring mirroring, boolean hasPrgRAM, boolean hasChrRAM, int mapperNumber)
             throws UnsupportedMapperException {
@@ -1,6 +1,8 @@
 package nesemu;
 
 import java.awt.event.KeyEvent;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /* The state of the controllers is read by games through addresses 0x4016 and
  * 0x4017. When a byte with bit 0 set and then one with bit 0 clear are
@@ -11,10 +13,8 @@ import java.awt.event.KeyEvent;
 
 public class Controller extends MemoryMapped {
 
-    /* To allow communicating button presses to the emulator on a frame-by-frame
-     * basis, isPressedLocally is copied to the appropriate field (player 1 or
-     * player two) in commitButtonStates().
-     */
+    // Keys of the local player, and bits of the button states (one per
+    // button, as sent over netplay).
     public enum Button {
         BUTTON_A(KeyEvent.VK_X, (byte)1),
         BUTTON_B(KeyEvent.VK_Z, (byte)(1 << 1)),
@@ -25,22 +25,19 @@ public class Controller extends MemoryMapped {
         BUTTON_LEFT(KeyEvent.VK_LEFT, (byte)(1 << 6)),
         BUTTON_RIGHT(KeyEvent.VK_RIGHT, (byte)(1 << 7));
 
-        public int keyCode;
-        public boolean isPressedByPlayerOne;
-        public boolean isPressedByPlayerTwo;
-        public boolean isPressedLocally;
-        public byte bit;
+        // values() returns a new array every time.
+        private static final Button BUTTONS[] = values();
+
+        public final int keyCode;
+        public final byte bit;
 
         private Button(int keyCode, byte bit) {
             this.keyCode = keyCode;
-            this.isPressedByPlayerOne = false;
-            this.isPressedByPlayerTwo = false;
-            this.isPressedLocally = false;
             this.bit = bit;
         }
 
         public static Button fromKeyCode(int keyCode) {
-            for (Button button : Button.values()) {
+            for (Button button : BUTTONS) {
                 if (keyCode == button.keyCode)
                     return button;
             }
@@ -48,25 +45,36 @@ public class Controller extends MemoryMapped {
         }
     }
 
+    /* The buttons pressed by player 1 (in the low byte) and player 2 (in the
+     * next one). They may be set from any thread, at any time; the emulation
+     * thread takes a snapshot at the start of each frame (see
+     * snapshotButtonStates()), which is what the game sees for the whole
+     * frame.
+     */
+    private final AtomicInteger buttonStates;
+    private int frameButtonStates;
     private boolean poll;
     private byte playerOneBuffer;
     private byte playerTwoBuffer;
+    // Whether the buttons have been latched since power-on. Not part of the
+    // snapshots, as it's only used to detect when a game starts reading input.
+    private boolean hasBeenPolled;
 
     public Controller() {
+        buttonStates = new AtomicInteger();
         poll = false;
         playerOneBuffer = 0;
         playerTwoBuffer = 0;
     }
 
+    // Called by the NES at the start of each frame.
+    void snapshotButtonStates() {
+        frameButtonStates = buttonStates.get();
+    }
+
     private void getKeyBytes() {
-        playerOneBuffer = 0;
-        playerTwoBuffer = 0;
-        for (Button button : Button.values()) {
-            if (button.isPressedByPlayerOne)
-                playerOneBuffer |= button.bit;
-            if (button.isPressedByPlayerTwo)
-                playerTwoBuffer |= button.bit;
-        }
+        playerOneBuffer = (byte)frameButtonStates;
+        playerTwoBuffer = (byte)(frameButtonStates >>> 8);
     }
 
     @Override
@@ -94,38 +102,39 @@ public class Controller extends MemoryMapped {
         boolean prevPoll = poll;
         if (address == 0x4016) {
             poll = (value & 1) != 0;
-            if (prevPoll && !poll)
+            if (prevPoll && !poll) {
                 getKeyBytes();
+                hasBeenPolled = true;
+            }
         }
     }
 
-    public void commitButtonStates(boolean isPlayerOne) {
-        for (Button button : Button.values()) {
-            if (isPlayerOne)
-                button.isPressedByPlayerOne = button.isPressedLocally;
-            else
-                button.isPressedByPlayerTwo = button.isPressedLocally;
-        }
+    public boolean hasBeenPolled() {
+        return hasBeenPolled;
     }
 
-    public String getNetplayButtonStatesMessage(boolean isPlayerOne) {
-        final Controller.Button[] buttons = Controller.Button.values();
-        final char[] characters = new char[buttons.length];
-        for (int i = 0; i < characters.length; i++)
-            characters[i] = isPlayerOne ?
-                    (buttons[i].isPressedByPlayerOne ? '1' : '0') :
-                    (buttons[i].isPressedByPlayerTwo ? '1' : '0');
-        return new String(characters);
+    // Called by the NES when it's powered on again with another cartridge.
+    void powerOn() {
+        hasBeenPolled = false;
     }
 
-    public void processNetplayButtonStatesMessage(String message, boolean isPlayerOne) {
-        final Controller.Button[] buttons = Controller.Button.values();
-        for (int i = 0; i < buttons.length; i++) {
-            boolean pressed = message.charAt(i) == '1';
-            if (isPlayerOne)
-                buttons[i].isPressedByPlayerTwo = pressed;
-            else
-                buttons[i].isPressedByPlayerOne = pressed;
-        }
+    @Override
+    void writeState(ByteBuffer buffer) {
+        buffer.put((byte)(poll ? 1 : 0));
+        buffer.put(playerOneBuffer);
+        buffer.put(playerTwoBuffer);
+    }
+
+    @Override
+    void readState(ByteBuffer buffer) {
+        poll = buffer.get() != 0;
+        playerOneBuffer = buffer.get();
+        playerTwoBuffer = buffer.get();
+    }
+
+    // Sets the buttons pressed by each player, one bit per button (see
+    // Button.bit).
+    public void setButtonStates(byte playerOne, byte playerTwo) {
+        buttonStates.set((playerOne & 0xFF) | (playerTwo & 0xFF) << 8);
     }
 }
@@ -0,0 +1,21 @@
+package nesemu;
+
+/* Destination of the frames produced by the PPU. Once the PPU enters VBlank,
+ * its own frame buffer is handed over to the sink as is (no copy is made), so
+ * implementations must copy whatever they need before returning: the buffer
+ * will be overwritten as soon as the next frame starts rendering.
+ *
+ * Frames consist of 256x240 6-bit color indices, one byte per pixel, plus the
+ * color emphasis bits of each scanline. Conversion to RGB is left to the sink
+ * (see Palette), so it's only performed if the frame is actually displayed.
+ *
+ * Keeping this interface free of AWT types allows running the emulator core
+ * without a display (e.g. with java.awt.headless=true); DISCARD may be used
+ * when the frames are not needed at all.
+ */
+
+public interface FrameSink {
+    FrameSink DISCARD = (pixels, scanlineEmphasis) -> { };
+
+    void frameReady(byte[] pixels, byte[] scanlineEmphasis);
+}
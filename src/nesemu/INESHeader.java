@@ -0,0 +1,89 @@
+package nesemu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/* The 16-byte header at the start of every iNES file, which describes the
+ * size of the ROMs that follow and how the cartridge is wired. See
+ * https://www.nesdev.org/wiki/INES
+ *
+ * Parsing the header alone is enough to tell whether a file is a valid
+ * cartridge and whether its mapper is supported, without reading the ROMs.
+ */
+
+public final class INESHeader {
+    public static final int SIZE = 16;
+    private static final int PRG_ROM_BLOCK_SIZE = 16384;
+    private static final int CHR_ROM_BLOCK_SIZE = 8192;
+    private static final int TRAINER_SIZE = 512;
+    private static final byte MAGIC_NUMBER[] = { 0x4E, 0x45, 0x53, 0x1A };
+
+    public final int prgROMSize;
+    public final int chrROMSize;
+    public final int mapperNumber;
+    public final Cartridge.Mirroring mirroring;
+    public final boolean hasPrgRAM;
+    public final boolean hasChrRAM;
+    public final boolean hasTrainer;
+
+    private final byte bytes[];
+
+    private INESHeader(byte[] bytes) {
+        this.bytes = bytes;
+        for (int i = 0; i < MAGIC_NUMBER.length; i++)
+            if (bytes[i] != MAGIC_NUMBER[i])
+                throw new IllegalArgumentException("Invalid iNES header");
+        final byte flags6 = bytes[6];
+        final byte flags7 = bytes[7];
+        prgROMSize = PRG_ROM_BLOCK_SIZE * Byte.toUnsignedInt(bytes[4]);
+        chrROMSize = CHR_ROM_BLOCK_SIZE * Byte.toUnsignedInt(bytes[5]);
+        mapperNumber = ((flags6 & 0xF0) >>> 4) | (flags7 & 0xF0);
+        if ((flags6 & 8) != 0)
+            mirroring = Cartridge.Mirroring.FOUR_NAMETABLES;
+        else if ((flags6 & 1) != 0)
+            mirroring = Cartridge.Mirroring.VERTICAL;
+        else
+            mirroring = Cartridge.Mirroring.HORIZONTAL;
+        hasPrgRAM = (flags6 & 2) != 0;
+        hasChrRAM = chrROMSize == 0;
+        hasTrainer = (flags6 & 4) != 0;
+    }
+
+    // Parses the header at the buffer's position, which is advanced past it.
+    public static INESHeader read(ByteBuffer buffer) throws IllegalArgumentException {
+        if (buffer.remaining() < SIZE)
+            throw new IllegalArgumentException("Truncated iNES header");
+        final byte bytes[] = new byte[SIZE];
+        buffer.get(bytes);
+        return new INESHeader(bytes);
+    }
+
+    // Reads only the header of an iNES file.
+    public static INESHeader read(String filePath)
+            throws IOException, IllegalArgumentException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath),
+                StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+            buffer.flip();
+            return read(buffer);
+        }
+    }
+
+    // Number of bytes between the end of the header and the start of PRG-ROM.
+    public int getTrainerSize() {
+        return hasTrainer ? TRAINER_SIZE : 0;
+    }
+
+    // Size of the whole iNES image described by the header.
+    public int getImageSize() {
+        return SIZE + getTrainerSize() + prgROMSize + chrROMSize;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+}
@@ -5,23 +5,32 @@ import javax.swing.UIManager;
 import com.formdev.flatlaf.FlatDarkLaf;
 import java.awt.Color;
 import java.awt.GridLayout;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.awt.Font;
+import java.awt.event.KeyEvent;
+import java.io.File;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.text.NumberFormat;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.ButtonGroup;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.UnsupportedLookAndFeelException;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.util.logging.Logger;
 import java.util.logging.Level;
+import javax.swing.JComboBox;
 import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
+import javax.swing.JMenu;
+import javax.swing.JMenuItem;
+import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.JTextPane;
@@ -31,21 +40,51 @@ public class MainFrame extends javax.swing.JFrame {
     private static final int TARGET_FPS = 60;
     private static final int NANOSECS_PER_FRAME = (int)((1.0 / TARGET_FPS) * 1000000000);
 
+    // Holding down the rewind key plays the game backwards, up to the amount of
+    // frames whose snapshots fit in the rewind buffer.
+    private static final int REWIND_KEY = KeyEvent.VK_BACK_SPACE;
+    private static final int REWIND_BUFFER_SIZE =
+            Integer.getInteger("nesemu.rewindBufferMB", 32) << 20;
+
+    // F1 to F10 load the state saved in each slot; Shift + F1 to F10 save it.
+    private static final int FIRST_SAVE_STATE_SLOT_KEY = KeyEvent.VK_F1;
+
     private static final String NETPLAY_DEFAULT_HOST = "localhost";
     private static final int NETPLAY_DEFAULT_PORT = 6502;
 
     private NES nes;
     private NESRunnerThread nesRunnerThread;
-
-    private Socket netplaySocket;
-    private boolean isNetplayServer;
+    // Opened in the background; the runner thread installs it before running
+    // the game.
+    private volatile Future<BatterySave> batterySave;
+    private RomLibrary romLibrary;
+    private JMenuItem romLibraryMenuItem;
+    // When set, loadROM() loads this file instead of asking for one.
+    private volatile String pendingROMFilePath;
+
+    private final BootCache bootCache = BootCache.isEnabled() ?
+            new BootCache(BootCache.getDefaultDirectory()) : null;
+
+    private volatile NetplaySession netplaySession;
+    private volatile NetplaySpectator netplaySpectator;
     private NetplayServerWaitForConnectionThread netplayServerThread;
 
     public static final AtomicBoolean shouldSendSerializedNES =
             new AtomicBoolean(false);
     public static final AtomicBoolean shouldReset = new AtomicBoolean(false);
+    public static final AtomicBoolean isRewinding = new AtomicBoolean(false);
+    // Save state slots to save to and load from at the start of the next
+    // frame, or -1 if none.
+    public static final AtomicInteger slotToSave = new AtomicInteger(-1);
+    public static final AtomicInteger slotToLoad = new AtomicInteger(-1);
     public static final AtomicBoolean shouldSwitchCartridge =
             new AtomicBoolean(false);
+    // Buttons pressed on this computer, one bit per button (see
+    // Controller.Button.bit); set by the key listener, and read once per frame.
+    private static final AtomicInteger localButtonStates = new AtomicInteger(0);
+    // Set when a ROM has just been loaded, so that its boot sequence may be
+    // skipped (see BootCache).
+    public static final AtomicBoolean isColdBoot = new AtomicBoolean(false);
 
     private final ScreenPanel screenPanel;
 
@@ -60,10 +99,87 @@ public class MainFrame extends javax.swing.JFrame {
         initComponents();
         setAutoRequestFocus(true);
         screenPanel.init();
+        addVideoFilterMenu();
+        addROMLibraryMenuItem();
+        addSpectateMenuItem();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::closeBatterySave));
+    }
+
+    private void addVideoFilterMenu() {
+        final JMenu videoMenu = new JMenu("Video");
+        final ButtonGroup filterGroup = new ButtonGroup();
+        addVideoFilterMenuItem(videoMenu, filterGroup, "No filter",
+                new NearestNeighborFilter(1), true);
+        addVideoFilterMenuItem(videoMenu, filterGroup, "Nearest neighbor (2x)",
+                new NearestNeighborFilter(2), false);
+        addVideoFilterMenuItem(videoMenu, filterGroup, "Nearest neighbor (3x)",
+                new NearestNeighborFilter(3), false);
+        addVideoFilterMenuItem(videoMenu, filterGroup, "Scale2x",
+                new ScaleNxFilter(2), false);
+        addVideoFilterMenuItem(videoMenu, filterGroup, "Scale3x",
+                new ScaleNxFilter(3), false);
+        addVideoFilterMenuItem(videoMenu, filterGroup, "Scanlines",
+                new ScanlinesFilter(3), false);
+        addVideoFilterMenuItem(videoMenu, filterGroup, "NTSC composite",
+                new NTSCFilter(), false);
+        menuBar.add(videoMenu, 1);
+    }
+
+    private void addROMLibraryMenuItem() {
+        romLibraryMenuItem = new JMenuItem("ROM library");
+        romLibraryMenuItem.setFont(new Font("Fira Code", 0, 13));
+        romLibraryMenuItem.addActionListener(evt -> showROMLibrary());
+        systemMenu.add(romLibraryMenuItem, 1);
+    }
+
+    private void addSpectateMenuItem() {
+        final JMenuItem spectateMenuItem = new JMenuItem("Spectate");
+        spectateMenuItem.setFont(new Font("Fira Code", 0, 13));
+        spectateMenuItem.addActionListener(evt -> spectate());
+        netplayMenu.add(spectateMenuItem, 2);
+    }
+
+    // The library is loaded the first time it's needed.
+    private RomLibrary getROMLibrary() {
+        if (romLibrary == null) {
+            romLibrary = new RomLibrary(RomLibrary.getDefaultIndexFile());
+            try {
+                romLibrary.load();
+            } catch (IOException ex) {
+                Logger.getLogger(this.getClass().getName())
+                        .log(Level.SEVERE, null, ex);
+            }
+        }
+        return romLibrary;
+    }
+
+    private void showROMLibrary() {
+        final RomLibrary romLibrary = getROMLibrary();
+        final RomBrowserDialog dialog = new RomBrowserDialog(this, romLibrary,
+                filePath -> {
+                    pendingROMFilePath = filePath;
+                    if (nes == null)
+                        loadROM(true);
+                    else
+                        shouldSwitchCartridge.set(true);
+                });
+        // Files may have changed since the last time the library was shown.
+        if (!romLibrary.getRoots().isEmpty())
+            dialog.scan();
+        dialog.setVisible(true);
+    }
+
+    private void addVideoFilterMenuItem(JMenu menu, ButtonGroup group, String text,
+            VideoFilter filter, boolean selected) {
+        final JRadioButtonMenuItem item = new JRadioButtonMenuItem(text, selected);
+        item.setFont(new Font("Fira Code", 0, 13));
+        item.addActionListener(evt -> screenPanel.setFilter(filter));
+        group.add(item);
+        menu.add(item);
     }
 
     /* NESRunnerThread runs the emulator and, when a netplay connection is active
-     * (i. e. netplaySocket != null), handles the communication with the peer.
+     * (i. e. netplaySession != null), handles the communication with the peer.
      *
      * As for the netplay architecture, sending the whole screen image from the
      * server to the client each frame is too slow, so a distributed approach is
@@ -77,140 +193,221 @@ public class MainFrame extends javax.swing.JFrame {
      * emulators will stay synched at all times.
      *
      * Note that when first establishing a connection and when the server switches
-     * the running cartridge, the NES instance of the server is serialized and
-     * sent to the client over the socket.
+     * the running cartridge, the server's cartridge (unless the client already
+     * has it) and a snapshot of its NES's state are sent to the client.
+     * Spectators (netplaySpectator != null) are sent the same, and then the
+     * buttons of both players.
+     *
+     * Outside of netplay, the state of the NES at the start of each frame is
+     * stored in a RewindBuffer, and restored from it while rewinding. Save
+     * state slots are also only available outside of netplay, and are saved
+     * and loaded between frames, so the NES is never accessed concurrently.
      */
     private class NESRunnerThread extends Thread {
+        private RewindBuffer rewindBuffer;
+        private Cartridge rewindBufferCartridge;
+        // Opened in the background whenever the cartridge changes.
+        private Future<SaveStateSlots> saveStateSlots;
+        private Cartridge saveStateSlotsCartridge;
+        private Future<BatterySave> installedBatterySave;
+        private boolean isRecordingBoot;
+        private int framesUntilStatsShown;
+
         @Override
         public void run() {
-            final boolean isPlayerOne = netplaySocket == null || isNetplayServer;
-            if (isPlayerOne)
+            if (netplaySpectator == null &&
+                    (netplaySession == null || netplaySession.isServer()))
                 nes.reset();
-            else {
-                netplayReceiveMessage(isPlayerOne, false);
-                if (nes == null)
-                    return;
-            }
-            boolean sendResetMessage = false;
             while (!Thread.currentThread().isInterrupted()) {
+                final NetplaySession session = netplaySession;
+                final NetplaySpectator spectator = netplaySpectator;
                 if (shouldSwitchCartridge.compareAndSet(true, false)) {
                     boolean switched = loadROM(false);
-                    if (switched && netplaySocket != null)
+                    if (switched && session != null)
                         shouldSendSerializedNES.set(true);
                 }
-                if (shouldSendSerializedNES.compareAndSet(true, false))
-                    netplaySendSerializedNES();
+                if (!installBatterySave()) {
+                    // The game can't run until its save is loaded.
+                    Thread.yield();
+                    continue;
+                }
                 if (shouldReset.compareAndSet(true, false)) {
                     nes.reset();
-                    sendResetMessage = true;
+                    if (session != null)
+                        shouldSendSerializedNES.set(true);
                 }
                 long frameStartTime = System.nanoTime(), frameEndTime;
-                nes.controller.commitButtonStates(isPlayerOne);
-                if (netplaySocket != null) {
+                if (spectator != null) {
                     try {
-                        if (sendResetMessage && isNetplayServer) {
-                            netplaySendResetMessage();
-                            sendResetMessage = false;
-                        }
-                        netplaySendButtonStates(isPlayerOne);
-                        netplayReceiveMessage(isPlayerOne, true);
+                        nes = spectator.runFrame(nes);
                     } catch (IOException ex) {
-                        showConnectionClosedMessage();
+                        if (spectator == netplaySpectator)
+                            showSpectatingEndedMessage();
+                    }
+                } else if (session == null) {
+                    if (nes == null)
+                        return;
+                    if (isColdBoot.get() && bootCache != null &&
+                            bootCache.preload(nes.cartridge, nes.getStateSize())) {
+                        // The boot snapshot is still being read.
+                        Thread.yield();
+                        continue;
+                    }
+                    saveOrLoadStateSlot();
+                    if (isColdBoot.compareAndSet(true, false) && bootCache != null)
+                        isRecordingBoot = !bootCache.restore(nes);
+                    if (isRecordingBoot)
+                        isRecordingBoot = bootCache.recordFrame(nes);
+                    nes.controller.setButtonStates((byte)localButtonStates.get(), (byte)0);
+                    if (recordOrRewindFrame())
+                        nes.runUntilFrameReady();
+                } else {
+                    isRecordingBoot = false;
+                    try {
+                        if (session.isServer() &&
+                                shouldSendSerializedNES.compareAndSet(true, false))
+                            session.sendSync(nes);
+                        nes = session.runFrame(nes, (byte)localButtonStates.get());
+                        showNetplayStats(session);
+                    } catch (IOException ex) {
+                        if (session == netplaySession)
+                            showConnectionClosedMessage();
                     }
                 }
-                nes.runUntilFrameReady(screenPanel.img);
-                repaint();
                 do {
                     frameEndTime = System.nanoTime();
                 } while (frameEndTime - frameStartTime < NANOSECS_PER_FRAME);
             }
         }
 
-        private void netplaySendSerializedNES() {
-            try {
-                final DataOutputStream out =
-                        new DataOutputStream(netplaySocket.getOutputStream());
-                out.writeUTF("SYNC");
-                out.flush();
-                (new ObjectOutputStream(netplaySocket.getOutputStream()))
-                        .writeObject(nes);
-            } catch (IOException ex) {
-                Logger.getLogger(MainFrame.class.getName())
-                        .log(Level.SEVERE, null, ex);
-            }
-        }
-
-        private void netplayReceiveSerializedNES() {
+        /* Copies the RAM read from the battery save of the current cartridge
+         * into it once it's open. Returns false while it's still being read.
+         */
+        private boolean installBatterySave() {
+            final Future<BatterySave> save = batterySave;
+            if (save == null || save == installedBatterySave)
+                return true;
+            if (!save.isDone())
+                return false;
+            installedBatterySave = save;
             try {
-                nes = (NES)(new ObjectInputStream(netplaySocket.getInputStream()))
-                        .readObject();
-            } catch (IOException | ClassNotFoundException ex) {
-                Logger.getLogger(MainFrame.class.getName())
-                        .log(Level.SEVERE, null, ex);
+                if (save.get() != null)
+                    save.get().install();
+            } catch (ExecutionException ex) {
+                Logger.getLogger(this.getClass().getName())
+                        .log(Level.SEVERE, null, ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
             }
+            return true;
         }
 
-        private void netplaySendResetMessage() throws IOException {
-            final DataOutputStream out =
-                    new DataOutputStream(netplaySocket.getOutputStream());
-            out.writeUTF("RESET");
-            out.flush();
+        // Live values, once a second; the whole stats are logged when the
+        // session is closed.
+        private void showNetplayStats(NetplaySession session) {
+            if (--framesUntilStatsShown > 0)
+                return;
+            framesUntilStatsShown = 60;
+            statusBarLabel.setText("Netplay: " + session.getStats()
+                    .getLiveSummary(session.getRoundTripNanos()));
         }
 
-        private void netplaySendButtonStates(boolean isPlayerOne) throws IOException {
-            final DataOutputStream out =
-                    new DataOutputStream(netplaySocket.getOutputStream());
-            out.writeUTF("BUTTONS " + nes.controller.getNetplayButtonStatesMessage(isPlayerOne));
-            out.flush();
+        // Returns false if there are no frames left to rewind, in which case
+        // the emulation stays paused.
+        private boolean recordOrRewindFrame() {
+            if (rewindBufferCartridge != nes.cartridge) {
+                rewindBuffer = new RewindBuffer(REWIND_BUFFER_SIZE, nes.getStateSize());
+                rewindBufferCartridge = nes.cartridge;
+            }
+            if (isRewinding.get())
+                return rewindBuffer.pop(nes);
+            rewindBuffer.push(nes);
+            return true;
         }
 
-        private void netplayReceiveMessage(boolean isPlayerOne,
-                boolean waitForButtonStatesMessage) {
+        private void saveOrLoadStateSlot() {
+            if (saveStateSlotsCartridge != nes.cartridge)
+                openSaveStateSlots();
+            final int saveSlot = slotToSave.getAndSet(-1);
+            final int loadSlot = slotToLoad.getAndSet(-1);
+            if (saveSlot < 0 && loadSlot < 0)
+                return;
+            if (!saveStateSlots.isDone()) {
+                statusBarLabel.setText("Save state slots are still loading");
+                return;
+            }
+            SaveStateSlots slots = null;
             try {
-                final DataInputStream in =
-                        new DataInputStream(netplaySocket.getInputStream());
-                boolean buttonsMessageReceived = false;
-                do {
-                    String words[] = in.readUTF().split(" ");
-                    switch (words[0]) {
-                        case "RESET":
-                            nes.reset();
-                            break;
-                        case "SYNC":
-                            netplayReceiveSerializedNES();
-                            break;
-                        default:
-                            nes.controller
-                                    .processNetplayButtonStatesMessage(words[1], isPlayerOne);
-                            buttonsMessageReceived = true;
-                    }
-                } while (!buttonsMessageReceived && waitForButtonStatesMessage);
-            } catch (IOException ex) {
-                showConnectionClosedMessage();
+                slots = saveStateSlots.get();
+            } catch (ExecutionException ex) {
+                Logger.getLogger(this.getClass().getName())
+                        .log(Level.SEVERE, null, ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
             }
+            if (slots == null)
+                statusBarLabel.setText("Save state slots are unavailable");
+            else if (saveSlot >= 0) {
+                slots.save(saveSlot, nes);
+                statusBarLabel.setText("Saved state to slot " + (saveSlot + 1));
+            } else if (slots.load(loadSlot, nes))
+                statusBarLabel.setText("Loaded state from slot " + (loadSlot + 1));
+            else
+                statusBarLabel.setText("Slot " + (loadSlot + 1) + " is empty");
+        }
+
+        // Creating the slots file and mapping it is left to BackgroundIO;
+        // only copying snapshots is done here.
+        private void openSaveStateSlots() {
+            final Cartridge cartridge = nes.cartridge;
+            final int stateSize = nes.getStateSize();
+            final File file = SaveStateSlots.getDefaultFile(cartridge);
+            saveStateSlotsCartridge = cartridge;
+            saveStateSlots = BackgroundIO.submit(
+                    () -> new SaveStateSlots(file, cartridge, stateSize));
         }
 
         private void showConnectionClosedMessage() {
-            try {
-                netplaySocket.close();
-            } catch (IOException ex) {
-                Logger.getLogger(MainFrame.class.getName())
-                        .log(Level.SEVERE, null, ex);
-            }
+            final NetplaySession session = netplaySession;
+            session.close();
             statusBarLabel.setText("Connection closed by " +
-                    (isNetplayServer ? "client" : "server"));
-            netplaySocket = null;
+                    (session.isServer() ? "client" : "server"));
+            netplaySession = null;
             loadROMMenuItem.setEnabled(true);
+            romLibraryMenuItem.setEnabled(true);
+            resetMenuItem.setEnabled(true);
+        }
+
+        private void showSpectatingEndedMessage() {
+            netplaySpectator.close();
+            statusBarLabel.setText("Connection closed by server");
+            netplaySpectator = null;
+            loadROMMenuItem.setEnabled(true);
+            romLibraryMenuItem.setEnabled(true);
             resetMenuItem.setEnabled(true);
         }
     }
 
     private class NetplayServerWaitForConnectionThread extends Thread {
         private final int portNumber;
+        private final NetplaySession.Mode mode;
+        private final int inputDelay;
+        private final boolean isUDP;
+        private final String relayHostname;
+        private final String roomCode;
         private ServerSocket serverSocket;
+        private volatile UDPNetplayTransport udpTransport;
 
-        public NetplayServerWaitForConnectionThread(int portNumber) {
+        // With a room code, the port is the relay's.
+        public NetplayServerWaitForConnectionThread(int portNumber,
+                NetplaySession.Mode mode, int inputDelay, boolean isUDP,
+                String relayHostname, String roomCode) {
             this.portNumber = portNumber;
+            this.mode = mode;
+            this.inputDelay = inputDelay;
+            this.isUDP = isUDP;
+            this.relayHostname = relayHostname;
+            this.roomCode = roomCode;
         }
 
         @Override
@@ -222,13 +419,45 @@ public class MainFrame extends javax.swing.JFrame {
         @Override
         public void run() {
             try {
-                serverSocket = new ServerSocket(portNumber);
-                statusBarLabel.setText("Netplay server started; waiting for connections");
-                netplaySocket = serverSocket.accept();
-                statusBarLabel.setText("Accepted connection from "
-                    + netplaySocket.getInetAddress() + ":" + netplaySocket.getPort());
-                isNetplayServer = true;
+                final NetplayTransport transport;
+                if (isUDP) {
+                    udpTransport = new UDPNetplayTransport(portNumber,
+                            UDPNetplayTransport.getSimulatedLossRate());
+                    statusBarLabel.setText("Netplay server started; waiting for connections");
+                    udpTransport.waitForPeer();
+                    statusBarLabel.setText("Accepted connection from "
+                        + udpTransport.getPeerAddress());
+                    transport = udpTransport;
+                    udpTransport = null;
+                } else if (!roomCode.isEmpty()) {
+                    // The relay keeps the session's messages until the
+                    // client joins.
+                    final Socket socket = new Socket(relayHostname, portNumber);
+                    RelayServer.join(socket, roomCode, 1, -1);
+                    statusBarLabel.setText("Joined relay room " + roomCode
+                        + "; waiting for the client");
+                    transport = new TCPNetplayTransport(socket);
+                } else {
+                    serverSocket = new ServerSocket(portNumber);
+                    statusBarLabel.setText("Netplay server started; waiting for connections");
+                    final Socket socket = serverSocket.accept();
+                    statusBarLabel.setText("Accepted connection from "
+                        + socket.getInetAddress() + ":" + socket.getPort());
+                    transport = new TCPNetplayTransport(socket);
+                }
                 shouldSendSerializedNES.set(true);
+                final NetplaySession session =
+                        new NetplaySession(transport, true, mode, screenPanel);
+                session.setInputDelay(inputDelay);
+                // Spectators connect to the next port, always over TCP.
+                try {
+                    if (roomCode.isEmpty())
+                        session.setBroadcaster(new NetplayBroadcaster(portNumber + 1));
+                } catch (IOException ex) {
+                    Logger.getLogger(this.getClass().getName())
+                            .log(Level.SEVERE, null, ex);
+                }
+                netplaySession = session;
             } catch (IOException ex) {
                 if (!isInterrupted())
                     JOptionPane.showMessageDialog(null, "Could not start netplay server " +
@@ -246,6 +475,11 @@ public class MainFrame extends javax.swing.JFrame {
             } catch (IOException ex) {
 
             }
+            // Only while waiting for the client; afterwards it belongs to the
+            // session.
+            final UDPNetplayTransport transport = udpTransport;
+            if (transport != null)
+                transport.close();
         }
     }
 
@@ -425,21 +659,38 @@ public class MainFrame extends javax.swing.JFrame {
     }// </editor-fold>//GEN-END:initComponents
 
     private void formKeyPressed(java.awt.event.KeyEvent evt) {//GEN-FIRST:event_formKeyPressed
+        if (evt.getKeyCode() == REWIND_KEY)
+            isRewinding.set(true);
+        final int slot = evt.getKeyCode() - FIRST_SAVE_STATE_SLOT_KEY;
+        if (nes != null && slot >= 0 && slot < SaveStateSlots.NUM_SLOTS)
+            (evt.isShiftDown() ? slotToSave : slotToLoad).set(slot);
         Controller.Button button;
         if (nes == null || (button =
                 Controller.Button.fromKeyCode(evt.getKeyCode())) == null)
             return;
-        button.isPressedLocally = true;
+        setButtonPressedLocally(button, true);
     }//GEN-LAST:event_formKeyPressed
 
     private void formKeyReleased(java.awt.event.KeyEvent evt) {//GEN-FIRST:event_formKeyReleased
+        if (evt.getKeyCode() == REWIND_KEY)
+            isRewinding.set(false);
         Controller.Button button;
         if (nes == null || (button =
                 Controller.Button.fromKeyCode(evt.getKeyCode())) == null)
             return;
-        button.isPressedLocally = false;
+        setButtonPressedLocally(button, false);
     }//GEN-LAST:event_formKeyReleased
 
+    private static void setButtonPressedLocally(Controller.Button button,
+            boolean isPressed) {
+        final int bit = button.bit & 0xFF;
+        int states;
+        do {
+            states = localButtonStates.get();
+        } while (!localButtonStates.compareAndSet(states,
+                isPressed ? states | bit : states & ~bit));
+    }
+
     private void resetMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_resetMenuItemActionPerformed
         if (nes == null)
             return;
@@ -466,22 +717,36 @@ public class MainFrame extends javax.swing.JFrame {
     }//GEN-LAST:event_loadROMMenuItemActionPerformed
 
     private boolean loadROM(boolean isFirstLoadedROM) {
-        JFileChooser fileChooser = new JFileChooser();
-        FileNameExtensionFilter filter = new FileNameExtensionFilter(
-                "iNES cartridge files (.nes)", "nes");
-        fileChooser.setFileFilter(filter);
-        int result = fileChooser.showOpenDialog(null);
-        if (result != JFileChooser.APPROVE_OPTION)
-            return false;
-        String fileName = fileChooser.getSelectedFile().getName();
-        String filePath = fileChooser.getSelectedFile().getAbsolutePath();
+        String filePath = pendingROMFilePath;
+        pendingROMFilePath = null;
+        if (filePath == null) {
+            JFileChooser fileChooser = new JFileChooser();
+            FileNameExtensionFilter filter = new FileNameExtensionFilter(
+                    "iNES cartridge files (.nes, .zip)", "nes", "zip");
+            fileChooser.setFileFilter(filter);
+            int result = fileChooser.showOpenDialog(null);
+            if (result != JFileChooser.APPROVE_OPTION)
+                return false;
+            filePath = fileChooser.getSelectedFile().getAbsolutePath();
+        }
+        String fileName = new File(filePath).getName();
         try {
+            if (RomLibrary.isArchive(new File(filePath)))
+                filePath = ZipImageCache.findFirstROM(filePath);
             if (isFirstLoadedROM) {
                 nesRunnerThread = new NESRunnerThread();
                 nes = new NES(filePath);
+                nes.setFrameSink(screenPanel);
+                openBatterySave(filePath);
+                preloadBootSnapshot();
+                isColdBoot.set(true);
                 nesRunnerThread.start();
-            } else
+            } else {
                 nes.exchangeCartridge(filePath);
+                openBatterySave(filePath);
+                preloadBootSnapshot();
+                isColdBoot.set(true);
+            }
             statusBarLabel.setText("Running \"" + nes.cartridge.getName() + "\"");
             return true;
         } catch (IOException ex) {
@@ -500,11 +765,50 @@ public class MainFrame extends javax.swing.JFrame {
         return false;
     }
 
+    private void preloadBootSnapshot() {
+        if (bootCache != null)
+            bootCache.preload(nes.cartridge, nes.getStateSize());
+    }
+
+    // Neither waits for the file to be read or written.
+    private synchronized void openBatterySave(String romFilePath) {
+        if (batterySave != null)
+            BatterySave.closeAsync(batterySave);
+        batterySave = BatterySave.openAsync(romFilePath, nes.cartridge);
+    }
+
+    // On exit, waits for the last flush.
+    private synchronized void closeBatterySave() {
+        if (batterySave == null)
+            return;
+        try {
+            BatterySave.closeAsync(batterySave).get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException ex) {
+            Logger.getLogger(this.getClass().getName())
+                    .log(Level.SEVERE, null, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        batterySave = null;
+    }
+
     private class HostnameAndPortInputPanel extends JPanel {
         private final JTextField hostnameField;
         private final JFormattedTextField portNumberField;
+        private final JComboBox<NetplaySession.Mode> modeComboBox;
+        private final JComboBox<String> inputDelayComboBox;
+        private final JComboBox<String> transportComboBox;
+        private final JTextField roomCodeField;
 
         public HostnameAndPortInputPanel(boolean portNumberOnly) {
+            this(portNumberOnly, true);
+        }
+
+        // The server (portNumberOnly) also chooses the netplay mode. Each side
+        // chooses its own input delay; spectators (!isPlayer) only choose
+        // where to connect. Players may meet in a room of a RelayServer
+        // instead, in which case the server also gives the relay's hostname.
+        public HostnameAndPortInputPanel(boolean portNumberOnly, boolean isPlayer) {
             NumberFormat format = NumberFormat.getInstance();
             format.setGroupingUsed(false);
             NumberFormatter formatter = new NumberFormatter(format);
@@ -512,7 +816,7 @@ public class MainFrame extends javax.swing.JFrame {
             formatter.setMaximum(Integer.MAX_VALUE);
             formatter.setValueClass(Integer.class);
             formatter.setAllowsInvalid(true);
-            GridLayout layout = new GridLayout(portNumberOnly ? 1 : 2, 2);
+            GridLayout layout = new GridLayout(0, 2);
             layout.setHgap(20);
             layout.setVgap(10);
             setLayout(layout);
@@ -523,8 +827,31 @@ public class MainFrame extends javax.swing.JFrame {
             }
             add(new JLabel("Port number:"));
             portNumberField = new JFormattedTextField(formatter);
-            portNumberField.setValue(NETPLAY_DEFAULT_PORT);
+            portNumberField.setValue(NETPLAY_DEFAULT_PORT + (isPlayer ? 0 : 1));
             add(portNumberField);
+            modeComboBox = new JComboBox<>(NetplaySession.Mode.values());
+            if (portNumberOnly) {
+                add(new JLabel("Netplay mode:"));
+                add(modeComboBox);
+            }
+            inputDelayComboBox = new JComboBox<>();
+            inputDelayComboBox.addItem("Automatic");
+            for (int i = 0; i <= NetplaySession.MAX_INPUT_DELAY; i++)
+                inputDelayComboBox.addItem(i + (i == 1 ? " frame" : " frames"));
+            transportComboBox = new JComboBox<>(new String[] {"TCP", "UDP"});
+            roomCodeField = new JTextField();
+            if (isPlayer) {
+                add(new JLabel("Input delay:"));
+                add(inputDelayComboBox);
+                add(new JLabel("Transport:"));
+                add(transportComboBox);
+                add(new JLabel("Relay room code (optional):"));
+                add(roomCodeField);
+                if (portNumberOnly) {
+                    add(new JLabel("Relay's hostname or IP address:"));
+                    add(hostnameField);
+                }
+            }
         }
 
         public String getHostname() {
@@ -534,6 +861,25 @@ public class MainFrame extends javax.swing.JFrame {
         public int getPortNumber() {
             return Integer.parseInt(portNumberField.getText());
         }
+
+        public NetplaySession.Mode getMode() {
+            return (NetplaySession.Mode)modeComboBox.getSelectedItem();
+        }
+
+        public int getInputDelay() {
+            final int index = inputDelayComboBox.getSelectedIndex();
+            return index == 0 ? NetplaySession.AUTO_INPUT_DELAY : index - 1;
+        }
+
+        // Relays only take TCP connections.
+        public boolean isUDP() {
+            return transportComboBox.getSelectedIndex() == 1 && getRoomCode().isEmpty();
+        }
+
+        // Empty if not playing through a relay.
+        public String getRoomCode() {
+            return roomCodeField.getText().trim();
+        }
     }
 
     private void startServerMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_startServerMenuItemActionPerformed
@@ -543,25 +889,24 @@ public class MainFrame extends javax.swing.JFrame {
                 JOptionPane.QUESTION_MESSAGE);
         if (result != JOptionPane.OK_OPTION)
             return;
-        netplayServerThread =
-                new NetplayServerWaitForConnectionThread(inputPanel.getPortNumber());
+        netplayServerThread = new NetplayServerWaitForConnectionThread(
+                inputPanel.getPortNumber(), inputPanel.getMode(),
+                inputPanel.getInputDelay(), inputPanel.isUDP(),
+                inputPanel.getHostname(), inputPanel.getRoomCode());
         netplayServerThread.start();
     }//GEN-LAST:event_startServerMenuItemActionPerformed
 
     private void stopServerMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_stopServerMenuItemActionPerformed
-        if (netplayServerThread == null && netplaySocket == null)
+        final NetplaySession session = netplaySession;
+        if (netplayServerThread == null && session == null)
             return;
         statusBarLabel.setText("Netplay server stopped");
         if (netplayServerThread != null && netplayServerThread.isAlive())
             netplayServerThread.interrupt();
-        if (netplaySocket != null)
-            try {
-                netplaySocket.close();
-                netplaySocket = null;
-            } catch (IOException ex) {
-                Logger.getLogger(MainFrame.class.getName())
-                        .log(Level.SEVERE, null, ex);
-            }
+        if (session != null) {
+            netplaySession = null;
+            session.close();
+        }
     }//GEN-LAST:event_stopServerMenuItemActionPerformed
 
     private void connectToServerMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_connectToServerMenuItemActionPerformed
@@ -576,11 +921,28 @@ public class MainFrame extends javax.swing.JFrame {
         if (netplayServerThread != null && netplayServerThread.isAlive())
             netplayServerThread.interrupt();
         try {
-            netplaySocket = new Socket(hostname, portNumber);
+            final NetplayTransport transport;
+            if (inputPanel.isUDP()) {
+                transport = UDPNetplayTransport.connect(hostname, portNumber,
+                        UDPNetplayTransport.getSimulatedLossRate());
+            } else {
+                final Socket socket = new Socket(hostname, portNumber);
+                if (!inputPanel.getRoomCode().isEmpty())
+                    RelayServer.join(socket, inputPanel.getRoomCode(), 2, -1);
+                transport = new TCPNetplayTransport(socket);
+            }
+            final NetplaySession session = new NetplaySession(transport, false,
+                    NetplaySession.Mode.LOCKSTEP, screenPanel, getROMLibrary());
+            session.setInputDelay(inputPanel.getInputDelay());
+            netplaySession = session;
+            final NetplaySpectator spectator = netplaySpectator;
+            netplaySpectator = null;
+            if (spectator != null)
+                spectator.close();
             statusBarLabel.setText("Successfully connected to server");
             loadROMMenuItem.setEnabled(false);
+            romLibraryMenuItem.setEnabled(false);
             resetMenuItem.setEnabled(false);
-            isNetplayServer = false;
             if (nes != null)
                 nesRunnerThread.interrupt();
             nesRunnerThread = new NESRunnerThread();
@@ -592,19 +954,57 @@ public class MainFrame extends javax.swing.JFrame {
         }
     }//GEN-LAST:event_connectToServerMenuItemActionPerformed
 
-    private void disconnectFromServerMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_disconnectFromServerMenuItemActionPerformed
-        if (netplaySocket == null || isNetplayServer)
+    // Watches the game of a netplay server, from the port after the server's.
+    private void spectate() {
+        HostnameAndPortInputPanel inputPanel = new HostnameAndPortInputPanel(false, false);
+        int result = JOptionPane.showConfirmDialog(null, inputPanel,
+                "Spectate a netplay game", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.QUESTION_MESSAGE);
+        if (result != JOptionPane.OK_OPTION || netplaySession != null)
             return;
         try {
-            netplaySocket.close();
-            netplaySocket = null;
-            statusBarLabel.setText("Disconnected from server");
+            final NetplaySpectator spectator = new NetplaySpectator(
+                    new TCPNetplayTransport(new Socket(inputPanel.getHostname(),
+                            inputPanel.getPortNumber())), screenPanel, getROMLibrary());
+            final NetplaySpectator previous = netplaySpectator;
+            netplaySpectator = spectator;
+            if (previous != null)
+                previous.close();
+            statusBarLabel.setText("Spectating; waiting for the game");
+            loadROMMenuItem.setEnabled(false);
+            romLibraryMenuItem.setEnabled(false);
+            resetMenuItem.setEnabled(false);
+            if (nesRunnerThread != null)
+                nesRunnerThread.interrupt();
+            nesRunnerThread = new NESRunnerThread();
+            nesRunnerThread.start();
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(null, "Could not connect to server " +
+                    "(" + ex.getLocalizedMessage() + ").", "Connection error",
+                    JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void disconnectFromServerMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_disconnectFromServerMenuItemActionPerformed
+        final NetplaySpectator spectator = netplaySpectator;
+        if (spectator != null) {
+            netplaySpectator = null;
+            spectator.close();
+            statusBarLabel.setText("Stopped spectating");
             loadROMMenuItem.setEnabled(true);
+            romLibraryMenuItem.setEnabled(true);
             resetMenuItem.setEnabled(true);
-        } catch (IOException ex) {
-            Logger.getLogger(MainFrame.class.getName())
-                    .log(Level.SEVERE, null, ex);
+            return;
         }
+        final NetplaySession session = netplaySession;
+        if (session == null || session.isServer())
+            return;
+        netplaySession = null;
+        session.close();
+        statusBarLabel.setText("Disconnected from server");
+        loadROMMenuItem.setEnabled(true);
+        romLibraryMenuItem.setEnabled(true);
+        resetMenuItem.setEnabled(true);
     }//GEN-LAST:event_disconnectFromServerMenuItemActionPerformed
 
     private void emulatorHelpMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_emulatorHelpMenuItemActionPerformed
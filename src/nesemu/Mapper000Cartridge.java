@@ -13,8 +13,10 @@ public class Mapper000Cartridge extends Cartridge {
         return prgROM[Short.toUnsignedInt(address) % prgROM.length];
     }
 
+    // NROM has no registers, and ROM is read-only (and may be shared with
+    // other cartridges, see RomPool).
     @Override
     void writePrgROMByte(short address, byte value) {
-        prgROM[Short.toUnsignedInt(address) % prgROM.length] = value;
+
     }
 }
@@ -1,5 +1,7 @@
 package nesemu;
 
+import java.nio.ByteBuffer;
+
 // https://www.nesdev.org/wiki/MMC1
 
 public class Mapper001Cartridge extends Cartridge {
@@ -29,12 +31,40 @@ public class Mapper001Cartridge extends Cartridge {
         SWITCH_TWO_4KB
     }
 
+    // Cached, as values() returns a new array on each call.
+    private static final PrgBankMode[] PRG_BANK_MODE_VALUES = PrgBankMode.values();
+    private static final ChrBankMode[] CHR_BANK_MODE_VALUES = ChrBankMode.values();
+
     public Mapper001Cartridge(byte[] prgROM, byte[] chrROM, Mirroring mirroring,
             boolean hasPrgRAM, boolean hasChrRAM) {
         super(prgROM, chrROM, mirroring, hasPrgRAM, hasChrRAM);
         prgRAM = new byte[32768];
         shiftRegister = (byte)0x10;
         prgBankMode = PrgBankMode.FIX_16KB_SECOND_HALF;
+        chrBankMode = ChrBankMode.SWITCH_8KB;
+    }
+
+    @Override
+    void writeState(ByteBuffer buffer) {
+        super.writeState(buffer);
+        buffer.put(shiftRegister);
+        buffer.put((byte)prgBankMode.ordinal()).put((byte)chrBankMode.ordinal());
+        buffer.put((byte)prgROMBankSelect).put((byte)chrLowerBankSelect)
+                .put((byte)chrUpperBankSelect).put((byte)prgRAMBankSelect);
+        buffer.put((byte)(upper256KBank ? 1 : 0));
+    }
+
+    @Override
+    void readState(ByteBuffer buffer) {
+        super.readState(buffer);
+        shiftRegister = buffer.get();
+        prgBankMode = PRG_BANK_MODE_VALUES[buffer.get()];
+        chrBankMode = CHR_BANK_MODE_VALUES[buffer.get()];
+        prgROMBankSelect = buffer.get();
+        chrLowerBankSelect = buffer.get();
+        chrUpperBankSelect = buffer.get();
+        prgRAMBankSelect = buffer.get();
+        upper256KBank = buffer.get() != 0;
     }
 
     @Override
@@ -88,6 +118,7 @@ public class Mapper001Cartridge extends Cartridge {
     public void writePrgRAMByte(short address, byte value) {
         prgRAM[(prgRAMBankSelect * PRG_RAM_BANK_SIZE +
                 Short.toUnsignedInt(address) % PRG_RAM_BANK_SIZE)% prgRAM.length] = value;
+        markPrgRAMDirty();
     }
 
     @Override
@@ -1,5 +1,7 @@
 package nesemu;
 
+import java.nio.ByteBuffer;
+
 // https://www.nesdev.org/wiki/UxROM
 
 public class Mapper002Cartridge extends Cartridge {
@@ -12,6 +14,18 @@ public class Mapper002Cartridge extends Cartridge {
         super(prgROM, chrROM, mirroring, hasPrgRAM, hasChrRAM);
     }
 
+    @Override
+    void writeState(ByteBuffer buffer) {
+        super.writeState(buffer);
+        buffer.put((byte)bankSelect);
+    }
+
+    @Override
+    void readState(ByteBuffer buffer) {
+        super.readState(buffer);
+        bankSelect = Byte.toUnsignedInt(buffer.get());
+    }
+
     @Override
     byte readPrgROMByte(short address) {
         int mappedAddress = Short.toUnsignedInt(address);
@@ -1,14 +1,19 @@
 package nesemu;
 
-import java.io.Serializable;
+import java.nio.ByteBuffer;
 
-public abstract class MemoryMapped implements Serializable {
+public abstract class MemoryMapped {
     AddressSpace addressSpace;
 
     public abstract boolean addressIsMapped(short address);
     public abstract byte readByteFromDevice(short address);
     public abstract void writeByteToDevice(short address, byte value);
 
+    // Each device writes its mutable state to (and reads it back from) NES
+    // state snapshots; see NES.writeState().
+    abstract void writeState(ByteBuffer buffer);
+    abstract void readState(ByteBuffer buffer);
+
     void linkAddressSpace(AddressSpace addressSpace) {
         this.addressSpace = addressSpace;
     }
@@ -1,10 +1,21 @@
 package nesemu;
 
-import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+public class NES {
+    /* State snapshots start with a header (magic number, format version and
+     * the hash of the cartridge's ROMs) followed by the mutable state of each
+     * device, in a fixed order. The format version must be increased whenever
+     * any device changes what it writes in writeState().
+     */
+    public static final int STATE_MAGIC_NUMBER = 0x4E455353;   // "NESS"
+    public static final short STATE_FORMAT_VERSION = 1;
+    // The devices in a snapshot, in the order they are written.
+    public static final String STATE_COMPONENT_NAMES[] = {
+        "CPU", "RAM", "PPU", "Cartridge", "Controller"
+    };
 
-public class NES implements Serializable {
     private final AddressSpace addressSpace;
     private final CPU cpu;
     private final PPU ppu;
@@ -12,20 +23,29 @@ public class NES implements Serializable {
     public Cartridge cartridge;
     public final Controller controller;
 
+    private int stateSize;
+    private final int stateLayout[];
+
     public NES(String cartridgeFilePath) throws IOException,
             UnsupportedMapperException, IllegalArgumentException {
+        this(Cartridge.fromINESFile(cartridgeFilePath));
+    }
+
+    public NES(Cartridge cartridge) {
         addressSpace = new AddressSpace();
         cpu = new CPU();
         ram = new RAM();
-        cartridge = Cartridge.fromINESFile(cartridgeFilePath);
+        this.cartridge = cartridge;
         ppu = new PPU(cartridge);
         controller = new Controller();
+        stateLayout = new int[STATE_COMPONENT_NAMES.length + 1];
         addressSpace.addDevice(cartridge);
         addressSpace.addDevice(ppu);
         addressSpace.addDevice(ram);
         addressSpace.addDevice(controller);
         addressSpace.addDevice(cpu);
         cpu.reset();
+        stateSize = measureStateSize();
     }
 
     public void reset() {
@@ -41,18 +61,120 @@ public class NES implements Serializable {
         cartridge = newCartridge;
         addressSpace.addDevice(cartridge);
         ppu.cartridge = cartridge;
+        controller.powerOn();
+        stateSize = measureStateSize();
         reset();
     }
 
+    public void setFrameSink(FrameSink frameSink) {
+        ppu.setFrameSink(frameSink);
+    }
+
+    /* The palette indices of the last frame rendered by the PPU, i. e. the
+     * same buffer handed to the frame sink. This buffer is only complete
+     * between calls to runUntilFrameReady(), and must not be modified.
+     */
+    public byte[] getFrame() {
+        return ppu.getFrameBuffer();
+    }
+
     // The PPU's clock runs at three times the speed of the CPU's clock. See
     // https://www.nesdev.org/wiki/Cycle_reference_chart
-    public void runUntilFrameReady(BufferedImage img) {
+    // The buttons the game sees are those set when the frame starts.
+    public void runUntilFrameReady() {
+        controller.snapshotButtonStates();
         while (!ppu.isFrameReady) {
-            ppu.clockTick(img, cpu);
-            ppu.clockTick(img, cpu);
-            ppu.clockTick(img, cpu);
+            ppu.clockTick(cpu);
+            ppu.clockTick(cpu);
+            ppu.clockTick(cpu);
             cpu.clockTick();
         }
         ppu.isFrameReady = false;
     }
+
+    // The size of a snapshot (and where each device's state starts) only
+    // depends on the cartridge (i. e. on the size of its RAMs), so it's
+    // measured once by taking a snapshot.
+    private int measureStateSize() {
+        final ByteBuffer buffer = ByteBuffer.allocate(0x4000 +
+                cartridge.prgRAM.length + cartridge.chrROM.length);
+        writeState(buffer, stateLayout);
+        return buffer.position();
+    }
+
+    /* The offsets in a snapshot where the state of each device starts (in the
+     * order of STATE_COMPONENT_NAMES), followed by the size of the snapshot.
+     * The array must not be modified.
+     */
+    int[] getStateLayout() {
+        return stateLayout;
+    }
+
+    // Size in bytes of the snapshots written by writeState().
+    public int getStateSize() {
+        return stateSize;
+    }
+
+    /* Writes a snapshot of the console's state at the buffer's position. The
+     * snapshot may only be read back into an NES running the same cartridge,
+     * or one whose ROMs have the same contents.
+     */
+    public void writeState(ByteBuffer buffer) {
+        writeState(buffer, null);
+    }
+
+    // Also records the layout of the snapshot, if requested.
+    private void writeState(ByteBuffer buffer, int[] layout) {
+        final int start = buffer.position();
+        buffer.putInt(STATE_MAGIC_NUMBER).putShort(STATE_FORMAT_VERSION);
+        buffer.put(cartridge.romHash);
+        markLayout(layout, 0, buffer.position() - start);
+        cpu.writeState(buffer);
+        markLayout(layout, 1, buffer.position() - start);
+        ram.writeState(buffer);
+        markLayout(layout, 2, buffer.position() - start);
+        ppu.writeState(buffer);
+        markLayout(layout, 3, buffer.position() - start);
+        cartridge.writeState(buffer);
+        markLayout(layout, 4, buffer.position() - start);
+        controller.writeState(buffer);
+        markLayout(layout, 5, buffer.position() - start);
+    }
+
+    private static void markLayout(int[] layout, int index, int offset) {
+        if (layout != null)
+            layout[index] = offset;
+    }
+
+    public void readState(ByteBuffer buffer) throws IllegalArgumentException {
+        if (buffer.remaining() < stateSize)
+            throw new IllegalArgumentException("Truncated state snapshot");
+        if (buffer.getInt() != STATE_MAGIC_NUMBER)
+            throw new IllegalArgumentException("Not a state snapshot");
+        if (buffer.getShort() != STATE_FORMAT_VERSION)
+            throw new IllegalArgumentException("Unsupported state snapshot version");
+        for (byte hashByte : cartridge.romHash)
+            if (buffer.get() != hashByte)
+                throw new IllegalArgumentException(
+                        "State snapshot belongs to a different cartridge");
+        cpu.readState(buffer);
+        ram.readState(buffer);
+        ppu.readState(buffer);
+        cartridge.readState(buffer);
+        controller.readState(buffer);
+    }
+
+    /* Same as writeState() and readState(), but through a preallocated
+     * StateBuffer, which must have a capacity of at least getStateSize().
+     * Neither method allocates, so they may be called thousands of times per
+     * second.
+     */
+    public void saveState(StateBuffer state) {
+        writeState(state.startWriting());
+        state.finishWriting();
+    }
+
+    public void loadState(StateBuffer state) throws IllegalArgumentException {
+        readState(state.startReading());
+    }
 }
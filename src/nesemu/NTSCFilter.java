@@ -0,0 +1,72 @@
+package nesemu;
+
+/* An approximation of the artifacts of the NES's composite video output. The
+ * NTSC signal carries color (chroma) with far less bandwidth than brightness
+ * (luma), so colors bleed horizontally into their neighbors. Here, each pixel
+ * is converted to YIQ (https://en.wikipedia.org/wiki/YIQ), luma is slightly
+ * blurred and chroma strongly blurred along the scanline, and the result is
+ * converted back to RGB and doubled in size. This is much cheaper than a full
+ * signal-level simulation, while still producing the characteristic look.
+ */
+
+public class NTSCFilter implements VideoFilter {
+    private static final int SCALE = 2;
+    private static final float[] LUMA_KERNEL = { 0.15f, 0.7f, 0.15f };
+    private static final float[] CHROMA_KERNEL = { 0.1f, 0.2f, 0.4f, 0.2f, 0.1f };
+
+    // Y, I and Q of a row, for each of the threads filtering bands of it.
+    private final ThreadLocal<float[][]> rowBuffers =
+            ThreadLocal.withInitial(() -> new float[3][0]);
+
+    @Override
+    public int getScale() {
+        return SCALE;
+    }
+
+    @Override
+    public void apply(int[] src, int width, int height, int[] dst, int firstRow,
+            int lastRow) {
+        final float[][] buffers = rowBuffers.get();
+        if (buffers[0].length != width)
+            for (int k = 0; k < buffers.length; k++)
+                buffers[k] = new float[width];
+        final float[] y = buffers[0], i = buffers[1], q = buffers[2];
+        final int dstWidth = width * SCALE;
+        for (int row = firstRow; row < lastRow; row++) {
+            for (int x = 0; x < width; x++) {
+                final int rgb = src[row * width + x];
+                final float r = (rgb >>> 16) & 0xFF, g = (rgb >>> 8) & 0xFF, b = rgb & 0xFF;
+                y[x] = 0.299f * r + 0.587f * g + 0.114f * b;
+                i[x] = 0.596f * r - 0.274f * g - 0.322f * b;
+                q[x] = 0.211f * r - 0.523f * g + 0.312f * b;
+            }
+            final int dstRow = row * SCALE * dstWidth;
+            for (int x = 0; x < width; x++) {
+                final float luma = convolve(y, x, LUMA_KERNEL);
+                final float inPhase = convolve(i, x, CHROMA_KERNEL);
+                final float quadrature = convolve(q, x, CHROMA_KERNEL);
+                final int r = clamp(luma + 0.956f * inPhase + 0.621f * quadrature);
+                final int g = clamp(luma - 0.272f * inPhase - 0.647f * quadrature);
+                final int b = clamp(luma - 1.106f * inPhase + 1.703f * quadrature);
+                final int rgb = 0xFF000000 | (r << 16) | (g << 8) | b;
+                dst[dstRow + x * SCALE] = rgb;
+                dst[dstRow + x * SCALE + 1] = rgb;
+            }
+            System.arraycopy(dst, dstRow, dst, dstRow + dstWidth, dstWidth);
+        }
+    }
+
+    private static float convolve(float[] samples, int x, float[] kernel) {
+        final int radius = kernel.length / 2;
+        float sum = 0;
+        for (int k = 0; k < kernel.length; k++) {
+            final int sampleX = Math.min(Math.max(x + k - radius, 0), samples.length - 1);
+            sum += kernel[k] * samples[sampleX];
+        }
+        return sum;
+    }
+
+    private static int clamp(float value) {
+        return Math.min(Math.max(Math.round(value), 0), 255);
+    }
+}
@@ -0,0 +1,409 @@
+package nesemu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/* Sends the server's side of a netplay session to any number of spectators,
+ * which connect over TCP and run their own NES (see NetplaySpectator). A
+ * spectator first receives a sync (the same header and data messages sent to
+ * the client by NetplaySession, see NetplaySync), and then the inputs of both
+ * players for every frame from the sync on, once they are final.
+ *
+ * All spectators are served by a single thread with an NIO selector, and
+ * each of them has its own queue of data waiting to be written, so a slow
+ * spectator never holds back the session or the other spectators; one whose
+ * queue grows beyond MAX_QUEUED_BYTES is disconnected. The emulation thread
+ * only writes the inputs into a ring (publishing them through
+ * lastPublishedFrame, as NetplaySession's receiver does) and wakes the
+ * selector up, so it never blocks on a spectator nor allocates, except for
+ * the snapshots taken for syncs.
+ *
+ * The messages use TCPNetplayTransport's format, so spectators receive them
+ * with it. Inputs go in INPUTS_MESSAGE control messages, whose payload holds
+ * the buttons of player 1 and player 2 of each frame, starting at the given
+ * one.
+ */
+
+public class NetplayBroadcaster {
+    // Same numbers as NetplaySession's messages.
+    static final byte SYNC_MESSAGE = 2;
+    static final byte ROM_REQUEST_MESSAGE = 6;
+    static final byte SYNC_DATA_MESSAGE = 7;
+    static final byte INPUTS_MESSAGE = 9;
+
+    private static final int MAX_INPUTS_PER_MESSAGE = 255;
+    private static final int MAX_QUEUED_BYTES = 4 << 20;
+    // Type, frame and length, as written by TCPNetplayTransport.
+    private static final int MESSAGE_HEADER_SIZE = 9;
+    private static final int MAX_RECEIVED_PAYLOAD = 256;
+    // Inputs of both players, kept in a ring indexed by frame number.
+    private static final int HISTORY_SIZE = 256;
+    private static final int HISTORY_MASK = HISTORY_SIZE - 1;
+
+    // A snapshot to be sent, either to every spectator (when the session is
+    // synced) or only to those waiting for one.
+    private static final class Sync {
+        final int frame;
+        final int resumeFrame;
+        final Cartridge cartridge;
+        final byte state[];
+        final boolean isForEveryone;
+
+        Sync(int frame, int resumeFrame, Cartridge cartridge, byte[] state,
+                boolean isForEveryone) {
+            this.frame = frame;
+            this.resumeFrame = resumeFrame;
+            this.cartridge = cartridge;
+            this.state = state;
+            this.isForEveryone = isForEveryone;
+        }
+    }
+
+    private static final class Spectator {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final Queue<ByteBuffer> queue;
+        int queuedBytes;
+        final ByteBuffer received;
+        // Next frame whose inputs must be sent, or -1 until a sync is sent.
+        int nextFrame;
+        int syncId;
+        Cartridge cartridge;
+
+        Spectator(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            queue = new ArrayDeque<>();
+            received = ByteBuffer.allocate(MESSAGE_HEADER_SIZE + MAX_RECEIVED_PAYLOAD);
+            nextFrame = -1;
+        }
+    }
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private volatile boolean isClosed;
+    private volatile int spectatorCount;
+    private volatile boolean isSnapshotWanted;
+    private final Queue<Sync> syncs;
+
+    // Written only by the emulation thread.
+    private final byte inputs[];
+    private volatile int lastPublishedFrame;
+
+    // Everything below is only accessed from the selector's thread.
+    private final List<Spectator> spectators;
+    private final Deflater deflater;
+    private final byte chunk[];
+    private int syncId;
+    private byte syncMessages[];
+    private int romSyncId;
+    private byte romMessages[];
+
+    public NetplayBroadcaster(int portNumber) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        selector = Selector.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(portNumber));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            serverChannel.close();
+            selector.close();
+            throw ex;
+        }
+        syncs = new ConcurrentLinkedQueue<>();
+        inputs = new byte[2 * HISTORY_SIZE];
+        lastPublishedFrame = -1;
+        spectators = new ArrayList<>();
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        chunk = NetplaySync.newChunkArray();
+        final Thread thread = new Thread(this::serveSpectators, "Netplay spectators");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getSpectatorCount() {
+        return spectatorCount;
+    }
+
+    // Whether a spectator has connected since the last snapshot was sent.
+    public boolean isSnapshotWanted() {
+        return isSnapshotWanted;
+    }
+
+    /* Restarts the broadcast at a sync of the session: every spectator gets
+     * the snapshot (taken at the start of the given frame), and the inputs
+     * published from now on are those of the frames from it on.
+     */
+    public void publishSync(int frame, int resumeFrame, Cartridge cartridge,
+            byte[] state) {
+        lastPublishedFrame = frame - 1;
+        syncs.add(new Sync(frame, resumeFrame, cartridge, state, true));
+        isSnapshotWanted = false;
+        selector.wakeup();
+    }
+
+    /* Sends a snapshot to the spectators waiting for one. It must have been
+     * taken at the start of a frame whose inputs haven't been published yet,
+     * or were published less than HISTORY_SIZE frames ago.
+     */
+    public void publishSnapshot(int frame, Cartridge cartridge, byte[] state) {
+        isSnapshotWanted = false;
+        syncs.add(new Sync(frame, frame, cartridge, state, false));
+        selector.wakeup();
+    }
+
+    // Publishes the final inputs of the next frame; the spectators get them
+    // on flush().
+    public void publishInputs(int frame, byte player1Buttons, byte player2Buttons) {
+        inputs[2 * (frame & HISTORY_MASK)] = player1Buttons;
+        inputs[2 * (frame & HISTORY_MASK) + 1] = player2Buttons;
+        lastPublishedFrame = frame;
+    }
+
+    public int getLastPublishedFrame() {
+        return lastPublishedFrame;
+    }
+
+    public void flush() {
+        if (spectatorCount > 0)
+            selector.wakeup();
+    }
+
+    public void close() {
+        isClosed = true;
+        selector.wakeup();
+    }
+
+    private void serveSpectators() {
+        try {
+            while (!isClosed) {
+                selector.select();
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else {
+                        final Spectator spectator = (Spectator)key.attachment();
+                        if (key.isReadable())
+                            receive(spectator);
+                        if (key.isValid() && key.isWritable())
+                            write(spectator);
+                    }
+                }
+                Sync sync;
+                while ((sync = syncs.poll()) != null)
+                    sendSync(sync);
+                sendInputs();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(NetplayBroadcaster.class.getName())
+                    .log(Level.SEVERE, null, ex);
+        } finally {
+            for (Spectator spectator : new ArrayList<>(spectators))
+                drop(spectator);
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException ex) {
+
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        final SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        final Spectator spectator = new Spectator(channel, key);
+        key.attach(spectator);
+        spectators.add(spectator);
+        spectatorCount = spectators.size();
+        isSnapshotWanted = true;
+    }
+
+    private void drop(Spectator spectator) {
+        spectators.remove(spectator);
+        spectatorCount = spectators.size();
+        spectator.key.cancel();
+        try {
+            spectator.channel.close();
+        } catch (IOException ex) {
+
+        }
+    }
+
+    // Spectators only send ROM requests.
+    private void receive(Spectator spectator) {
+        final ByteBuffer received = spectator.received;
+        try {
+            if (spectator.channel.read(received) < 0) {
+                drop(spectator);
+                return;
+            }
+            received.flip();
+            while (received.remaining() >= MESSAGE_HEADER_SIZE) {
+                final byte type = received.get(received.position());
+                final int length = received.getInt(received.position() + 5);
+                if (length < 0 || length > MAX_RECEIVED_PAYLOAD)
+                    throw new IOException("Invalid message from a spectator");
+                if (received.remaining() < MESSAGE_HEADER_SIZE + length)
+                    break;
+                received.position(received.position() + MESSAGE_HEADER_SIZE);
+                if (type == ROM_REQUEST_MESSAGE && length >= 4 &&
+                        received.getInt(received.position()) == spectator.syncId)
+                    sendROM(spectator);
+                received.position(received.position() + length);
+            }
+            received.compact();
+        } catch (IOException ex) {
+            drop(spectator);
+        }
+    }
+
+    private void sendSync(Sync sync) throws IOException {
+        boolean isWanted = sync.isForEveryone;
+        for (Spectator spectator : spectators)
+            isWanted |= spectator.nextFrame < 0;
+        if (!isWanted)
+            return;
+        syncId++;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        writeMessage(out, SYNC_MESSAGE, sync.frame, NetplaySync.writeHeader(syncId,
+                sync.resumeFrame, sync.cartridge, sync.state.length));
+        NetplaySync.writeChunks(syncId, NetplaySync.STATE_DATA, sync.state,
+                deflater, chunk, payload -> {
+                    writeMessage(out, SYNC_DATA_MESSAGE, 0, payload);
+                    return true;
+                });
+        syncMessages = bytes.toByteArray();
+        for (Spectator spectator : new ArrayList<>(spectators))
+            if (sync.isForEveryone || spectator.nextFrame < 0) {
+                spectator.syncId = syncId;
+                spectator.cartridge = sync.cartridge;
+                spectator.nextFrame = sync.frame;
+                enqueue(spectator, syncMessages);
+            }
+    }
+
+    // The ROM messages of the last sync requested are kept, since every
+    // spectator that doesn't have the game asks for the same ones.
+    private void sendROM(Spectator spectator) throws IOException {
+        if (romMessages == null || romSyncId != spectator.syncId) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            NetplaySync.writeChunks(spectator.syncId, NetplaySync.ROM_DATA,
+                    NetplaySync.getINESImage(spectator.cartridge), deflater, chunk,
+                    payload -> {
+                        writeMessage(out, SYNC_DATA_MESSAGE, 0, payload);
+                        return true;
+                    });
+            romSyncId = spectator.syncId;
+            romMessages = bytes.toByteArray();
+        }
+        enqueue(spectator, romMessages);
+    }
+
+    private static void writeMessage(DataOutputStream out, byte type, int frame,
+            ByteBuffer payload) throws IOException {
+        out.writeByte(type);
+        out.writeInt(frame);
+        out.writeInt(payload.remaining());
+        out.write(payload.array(), payload.arrayOffset() + payload.position(),
+                payload.remaining());
+    }
+
+    // Most of the time every spectator is at the same frame, so the message
+    // is only built once per range of frames.
+    private void sendInputs() {
+        final int lastFrame = lastPublishedFrame;
+        int messageFirstFrame = -1;
+        byte message[] = null;
+        for (Spectator spectator : new ArrayList<>(spectators)) {
+            final int firstFrame = spectator.nextFrame;
+            if (firstFrame < 0 || firstFrame > lastFrame)
+                continue;
+            if (lastFrame - firstFrame >= HISTORY_SIZE) {
+                drop(spectator);
+                continue;
+            }
+            if (message == null || firstFrame != messageFirstFrame) {
+                message = writeInputs(firstFrame, lastFrame);
+                messageFirstFrame = firstFrame;
+            }
+            spectator.nextFrame = lastFrame + 1;
+            enqueue(spectator, message);
+        }
+    }
+
+    private byte[] writeInputs(int firstFrame, int lastFrame) {
+        final int frameCount = lastFrame - firstFrame + 1;
+        final int messageCount = (frameCount + MAX_INPUTS_PER_MESSAGE - 1) /
+                MAX_INPUTS_PER_MESSAGE;
+        final ByteBuffer message = ByteBuffer.allocate(
+                messageCount * MESSAGE_HEADER_SIZE + 2 * frameCount);
+        for (int frame = firstFrame; frame <= lastFrame; ) {
+            final int count = Math.min(lastFrame - frame + 1, MAX_INPUTS_PER_MESSAGE);
+            message.put(INPUTS_MESSAGE).putInt(frame).putInt(2 * count);
+            for (int i = 0; i < count; i++, frame++)
+                message.put(inputs, 2 * (frame & HISTORY_MASK), 2);
+        }
+        return message.array();
+    }
+
+    private void enqueue(Spectator spectator, byte[] data) {
+        if (!spectator.key.isValid())
+            return;
+        if (spectator.queuedBytes + data.length > MAX_QUEUED_BYTES) {
+            drop(spectator);
+            return;
+        }
+        spectator.queue.add(ByteBuffer.wrap(data));
+        spectator.queuedBytes += data.length;
+        write(spectator);
+    }
+
+    // Writes as much as the socket takes right away, and waits for it to be
+    // writable again if anything is left.
+    private void write(Spectator spectator) {
+        try {
+            ByteBuffer data;
+            while ((data = spectator.queue.peek()) != null) {
+                final int written = spectator.channel.write(data);
+                spectator.queuedBytes -= written;
+                if (data.hasRemaining())
+                    break;
+                spectator.queue.remove();
+            }
+            spectator.key.interestOps(spectator.queue.isEmpty() ?
+                    SelectionKey.OP_READ :
+                    SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException ex) {
+            drop(spectator);
+        }
+    }
+}
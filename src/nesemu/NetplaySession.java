@@ -0,0 +1,745 @@
+package nesemu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/* A netplay connection between two emulators, each of them running its own
+ * NES: the server's local player is player 1 and the client's is player 2.
+ * Both emulators stay identical as long as they run the same frames with the
+ * same inputs, so only the inputs of each frame (tagged with the frame number)
+ * need to be exchanged.
+ *
+ * Two modes are supported, chosen by the server:
+ *
+ *   - LOCKSTEP: each frame only runs once the peer's input for it has been
+ *     received. To keep the round trip out of every frame, the input read at
+ *     frame F is sent ahead and applied at frame F + inputDelay, so the peer
+ *     only waits when its input arrives more than inputDelay frames late.
+ *   - ROLLBACK: the peer's input is predicted (it's assumed to be the same as
+ *     in the last frame received), so the emulation never waits for it. A
+ *     snapshot is taken at the start of each frame; when the actual input of
+ *     a frame turns out to differ from the prediction, the snapshot of that
+ *     frame is restored and the following frames are run again (without being
+ *     displayed) with the right input. The emulation only stalls when it gets
+ *     more than MAX_ROLLBACK_FRAMES ahead of the peer's input.
+ *
+ * Each side chooses its own input delay (the peer only sees which frame each
+ * input is for), which may change at any time: when it grows, the current
+ * input is also sent for the frames it skips, and when it shrinks, no input
+ * is sent until the frame of the last one sent is reached again. By default
+ * (AUTO_INPUT_DELAY) it's tuned from the round-trip time, which is measured
+ * with PING messages answered by PONG: enough frames to cover the one-way
+ * latency, plus one. In ROLLBACK mode the automatic delay is zero, since the
+ * prediction already hides the latency.
+ *
+ * Messages are sent through a NetplayTransport and received on its thread, so
+ * that the emulation thread never blocks on the network unless it has to wait
+ * for an input. Inputs are written by that thread into a ring and published
+ * through lastReceivedFrame, so receiving them doesn't allocate; the rest of
+ * the messages are rare, and go through a queue. PING messages are answered
+ * straight from the receiving thread, so the measured time doesn't include
+ * the time the peer takes to run a frame.
+ *
+ * The server starts the session, and restarts it whenever the game changes
+ * (new cartridge, reset...), by sending a SYNC message tagged with the frame
+ * it starts at, followed by its cartridge and a snapshot of its NES (see
+ * NetplaySync). The client stops as soon as the SYNC message arrives; the
+ * server doesn't have to wait for the transfer, though: the sync also agrees
+ * on a frame SYNC_LEAD_FRAMES later to resume at, and the client's input is
+ * taken to be empty until then. The server only stops at that frame if the
+ * client hasn't replied READY by then, so inputs sent by the client before
+ * the sync are never mixed with those sent after it: inputs received before
+ * a SYNC (on the client) or a READY (on the server) are dropped as soon as
+ * the message arrives.
+ *
+ * To catch desyncs (e. g. caused by a bug in the emulation), both sides hash
+ * the state of their NES at the start of every FRAMES_PER_HASH-th frame (see
+ * StateHash) and send the hashes in a HASH message. In ROLLBACK mode a frame
+ * is only hashed once the inputs of every frame before it have been received,
+ * using the snapshot taken for it. Whichever side gets both hashes of a frame
+ * compares them; on a mismatch the hashes of every device are logged, and the
+ * server starts a new sync.
+ *
+ * Statistics of the session (time blocked waiting for the peer, latency,
+ * jitter, frames ahead of the peer, bytes sent) are kept in NetplayStats,
+ * and logged when the session is closed. How far ahead of the peer the
+ * emulator is, is estimated from the frame each PING was sent at, plus half
+ * the round trip.
+ *
+ * The server may also broadcast the session to spectators (see
+ * NetplayBroadcaster): they get the syncs, and the inputs of both players as
+ * soon as they are final. Spectators connecting halfway through get a
+ * snapshot of the first frame whose inputs aren't final yet, which (in
+ * ROLLBACK mode) is taken from the snapshots kept for rollback, as for hashes.
+ */
+
+public class NetplaySession {
+    public enum Mode {
+        LOCKSTEP,
+        ROLLBACK
+    }
+
+    public static final int AUTO_INPUT_DELAY = -1;
+    public static final int MAX_INPUT_DELAY = 8;
+
+    private static final int MAX_ROLLBACK_FRAMES = 8;
+    private static final long NANOSECS_PER_FRAME = 1000000000L / 60;
+    private static final int FRAMES_PER_PING = 30;
+    private static final int SYNC_LEAD_FRAMES = 30;
+    static final int FRAMES_PER_HASH = 60;
+    // Inputs and snapshots are kept in rings indexed by frame number.
+    private static final int HISTORY_SIZE = 128;
+    private static final int HISTORY_MASK = HISTORY_SIZE - 1;
+    private static final int SNAPSHOTS_SIZE = 16;
+    private static final int SNAPSHOTS_MASK = SNAPSHOTS_SIZE - 1;
+    private static final int HASH_HISTORY_SIZE = 8;
+    private static final int HASH_HISTORY_MASK = HASH_HISTORY_SIZE - 1;
+    private static final int HASH_COUNT = NES.STATE_COMPONENT_NAMES.length;
+
+    // Types of the control messages sent through the transport.
+    static final byte MODE_MESSAGE = 1;
+    static final byte SYNC_MESSAGE = 2;
+    static final byte READY_MESSAGE = 3;
+    static final byte PING_MESSAGE = 4;
+    static final byte PONG_MESSAGE = 5;
+    static final byte ROM_REQUEST_MESSAGE = 6;
+    static final byte SYNC_DATA_MESSAGE = 7;
+    static final byte HASH_MESSAGE = 8;
+
+    private enum MessageType {
+        MODE,
+        SYNC_STARTED,
+        SYNC,
+        READY,
+        HASH,
+        CLOSED
+    }
+
+    private static final class Message {
+        final MessageType type;
+        final int frame;
+        final Mode mode;
+        final NetplaySync.Snapshot snapshot;
+        final int syncId;
+        final long hashes[];
+
+        Message(MessageType type, int frame, Mode mode,
+                NetplaySync.Snapshot snapshot, int syncId) {
+            this(type, frame, mode, snapshot, syncId, null);
+        }
+
+        Message(MessageType type, int frame, Mode mode,
+                NetplaySync.Snapshot snapshot, int syncId, long[] hashes) {
+            this.type = type;
+            this.frame = frame;
+            this.mode = mode;
+            this.snapshot = snapshot;
+            this.syncId = syncId;
+            this.hashes = hashes;
+        }
+    }
+
+    private final NetplayTransport transport;
+    private final boolean isServer;
+    private final FrameSink frameSink;
+    private final BlockingQueue<Message> messages;
+    // Smoothed round-trip time (0 until the first PONG), updated by the
+    // receiving thread.
+    private volatile long roundTripNanos;
+    private final ByteBuffer pongPayload;
+    private final NetplayStats stats;
+    // Local time at which the peer was at frame 0, going by the last PING
+    // (0 until the first one).
+    private volatile long peerFrameOriginNanos;
+    private volatile boolean isClosed;
+    // Only one of them is used, depending on the side.
+    private final NetplaySync.Sender syncSender;
+    private final NetplaySync.Assembler syncAssembler;
+
+    // Remote inputs as received, and the last frame received; the emulation
+    // thread waits on the lock for either an input or a message.
+    private final byte receivedInputs[];
+    private volatile int lastReceivedFrame;
+    private final Object arrivalLock;
+
+    // Everything below is only accessed from the emulation thread.
+    private Mode mode;
+    private int frame;
+    private boolean isWaitingForSync;
+    private int syncId;
+    private int resumeFrame;
+    private int inputDelay;
+    private boolean isInputDelayAuto;
+    private int framesUntilPing;
+    private final ByteBuffer pingPayload;
+    // Last frame whose local input has been sent.
+    private int lastLocalFrame;
+    private final byte localInputs[];
+    private final byte remoteInputs[];
+    private final byte predictedRemoteInputs[];
+    // Last frame whose remote input has been taken from receivedInputs;
+    // inputs arrive in order.
+    private int lastRemoteFrame;
+    private int rollbackFrame;
+    private StateBuffer snapshots[];
+    // Hashes of the last few hashed frames, of each side, indexed by frame
+    // number / FRAMES_PER_HASH.
+    private StateHash stateHash;
+    private int nextHashFrame;
+    private final int localHashFrames[];
+    private final long localHashes[];
+    private final int remoteHashFrames[];
+    private final long remoteHashes[];
+    private final ByteBuffer hashPayload;
+    private boolean isResyncNeeded;
+    private int desyncCount;
+    private NetplayBroadcaster broadcaster;
+    // Buttons the local player is pressing now.
+    private byte pressedButtons;
+    private long frameBlockedNanos;
+    private long lastBytesSent;
+
+    public NetplaySession(NetplayTransport transport, boolean isServer, Mode mode,
+            FrameSink frameSink) throws IOException {
+        this(transport, isServer, mode, frameSink, null);
+    }
+
+    /* The client looks for the server's game in the library (which may be
+     * null) before asking the server for it.
+     */
+    public NetplaySession(NetplayTransport transport, boolean isServer, Mode mode,
+            FrameSink frameSink, RomLibrary library) throws IOException {
+        this.transport = transport;
+        this.isServer = isServer;
+        this.mode = mode;
+        this.frameSink = frameSink;
+        messages = new LinkedBlockingQueue<>();
+        pongPayload = ByteBuffer.allocate(8);
+        stats = new NetplayStats();
+        pingPayload = ByteBuffer.allocate(8);
+        syncSender = isServer ? new NetplaySync.Sender(transport, SYNC_DATA_MESSAGE) : null;
+        syncAssembler = isServer ? null : new NetplaySync.Assembler(library);
+        receivedInputs = new byte[HISTORY_SIZE];
+        arrivalLock = new Object();
+        localInputs = new byte[HISTORY_SIZE];
+        remoteInputs = new byte[HISTORY_SIZE];
+        predictedRemoteInputs = new byte[HISTORY_SIZE];
+        isWaitingForSync = true;
+        rollbackFrame = -1;
+        isInputDelayAuto = true;
+        localHashFrames = new int[HASH_HISTORY_SIZE];
+        localHashes = new long[HASH_HISTORY_SIZE * HASH_COUNT];
+        remoteHashFrames = new int[HASH_HISTORY_SIZE];
+        remoteHashes = new long[HASH_HISTORY_SIZE * HASH_COUNT];
+        hashPayload = ByteBuffer.allocate(4 + 8 * HASH_COUNT);
+        transport.start(new Receiver());
+        if (isServer)
+            transport.sendMessage(MODE_MESSAGE, 0,
+                    ByteBuffer.wrap(new byte[] {(byte)mode.ordinal()}));
+    }
+
+    public boolean isServer() {
+        return isServer;
+    }
+
+    // Number of the next frame to be run.
+    public int getFrame() {
+        return frame;
+    }
+
+    // Number of frames, or AUTO_INPUT_DELAY. Larger delays are clamped to
+    // MAX_INPUT_DELAY.
+    public void setInputDelay(int frames) {
+        isInputDelayAuto = frames == AUTO_INPUT_DELAY;
+        if (!isInputDelayAuto)
+            inputDelay = Math.max(0, Math.min(frames, MAX_INPUT_DELAY));
+    }
+
+    public int getInputDelay() {
+        return inputDelay;
+    }
+
+    public long getRoundTripNanos() {
+        return roundTripNanos;
+    }
+
+    public NetplayStats getStats() {
+        return stats;
+    }
+
+    // Number of hash mismatches found so far.
+    public int getDesyncCount() {
+        return desyncCount;
+    }
+
+    /* Server only: broadcasts the session to spectators from the next sync
+     * on, so it must be set before the first one. The broadcaster is closed
+     * along with the session.
+     */
+    public void setBroadcaster(NetplayBroadcaster broadcaster) {
+        this.broadcaster = broadcaster;
+    }
+
+    // Logs the stats the first time.
+    public void close() {
+        transport.close();
+        if (syncSender != null)
+            syncSender.shutdown();
+        if (broadcaster != null)
+            broadcaster.close();
+        if (isClosed)
+            return;
+        isClosed = true;
+        Logger.getLogger(NetplaySession.class.getName()).log(Level.INFO,
+                stats.toString());
+    }
+
+    private class Receiver implements NetplayTransport.Listener {
+        @Override
+        public void inputReceived(int frame, byte buttons) {
+            receivedInputs[frame & HISTORY_MASK] = buttons;
+            synchronized (arrivalLock) {
+                lastReceivedFrame = frame;
+                arrivalLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void messageReceived(byte type, int frame, ByteBuffer payload) {
+            try {
+                switch (type) {
+                    case MODE_MESSAGE:
+                        addMessage(new Message(MessageType.MODE, frame,
+                                Mode.values()[payload.get()], null, 0));
+                        break;
+                    case SYNC_MESSAGE:
+                        dropReceivedInputs(frame);
+                        final boolean hasROM = syncAssembler.start(frame, payload);
+                        addMessage(new Message(MessageType.SYNC_STARTED, frame,
+                                null, null, syncAssembler.getSyncId()));
+                        if (!hasROM)
+                            transport.sendMessage(ROM_REQUEST_MESSAGE, frame,
+                                    ByteBuffer.allocate(4).putInt(0,
+                                            syncAssembler.getSyncId()));
+                        break;
+                    case ROM_REQUEST_MESSAGE:
+                        syncSender.sendROM(NetplaySync.readSyncId(payload));
+                        break;
+                    case SYNC_DATA_MESSAGE:
+                        final NetplaySync.Snapshot snapshot = syncAssembler.add(payload);
+                        if (snapshot != null)
+                            addMessage(new Message(MessageType.SYNC,
+                                    snapshot.syncFrame, null, snapshot, 0));
+                        break;
+                    case READY_MESSAGE:
+                        dropReceivedInputs(frame);
+                        addMessage(new Message(MessageType.READY, frame, null,
+                                null, NetplaySync.readSyncId(payload)));
+                        break;
+                    case PING_MESSAGE:
+                        receivePing(frame, payload.getLong(payload.position()));
+                        synchronized (pongPayload) {
+                            pongPayload.clear();
+                            pongPayload.putLong(payload.getLong()).flip();
+                            transport.sendMessage(PONG_MESSAGE, frame, pongPayload);
+                        }
+                        break;
+                    case PONG_MESSAGE:
+                        receivePong(payload.getLong());
+                        break;
+                    case HASH_MESSAGE:
+                        final int hashSyncId = payload.getInt();
+                        final long hashes[] = new long[HASH_COUNT];
+                        payload.asLongBuffer().get(hashes);
+                        addMessage(new Message(MessageType.HASH, frame, null,
+                                null, hashSyncId, hashes));
+                        break;
+                }
+            } catch (IOException | UnsupportedMapperException |
+                    RuntimeException ex) {
+                transport.close();
+            }
+        }
+
+        @Override
+        public void closed() {
+            addMessage(new Message(MessageType.CLOSED, 0, null, null, 0));
+        }
+    }
+
+    private void addMessage(Message message) {
+        synchronized (arrivalLock) {
+            messages.add(message);
+            arrivalLock.notifyAll();
+        }
+    }
+
+    // The inputs of the frames from the given one on belong to the timeline
+    // that a SYNC or READY message ends.
+    private void dropReceivedInputs(int timelineStartFrame) {
+        synchronized (arrivalLock) {
+            lastReceivedFrame = timelineStartFrame - 1;
+        }
+    }
+
+    private void receivePing(int peerFrame, long peerTime) {
+        final long now = System.nanoTime();
+        stats.recordPing(peerTime, now);
+        final long origin = now - roundTripNanos / 2 - peerFrame * NANOSECS_PER_FRAME;
+        peerFrameOriginNanos = origin == 0 ? 1 : origin;
+    }
+
+    private void receivePong(long pingTime) {
+        final long sample = System.nanoTime() - pingTime;
+        stats.recordRoundTrip(sample);
+        final long previous = roundTripNanos;
+        roundTripNanos = previous == 0 ? sample : previous + (sample - previous) / 8;
+    }
+
+    /* Starts a sync with the server's game at the current frame. Only the
+     * snapshot is taken here; the rest is done in the background.
+     */
+    public void sendSync(NES nes) throws IOException {
+        final byte state[] = new byte[nes.getStateSize()];
+        nes.writeState(ByteBuffer.wrap(state));
+        syncId++;
+        transport.sendMessage(SYNC_MESSAGE, frame, NetplaySync.writeHeader(syncId,
+                frame + SYNC_LEAD_FRAMES, nes.cartridge, state.length));
+        syncSender.start(syncId, nes.cartridge, state);
+        startTimeline(frame, frame + SYNC_LEAD_FRAMES);
+        resetHashes(frame);
+        isWaitingForSync = true;
+        if (broadcaster != null)
+            broadcaster.publishSync(frame, resumeFrame, nes.cartridge, state);
+    }
+
+    /* Runs the next frame of the session, if possible, handling any messages
+     * received in the meantime; the local player is pressing the given
+     * buttons (see Controller.Button.bit). Returns the NES that the session
+     * runs, which is a new one when the client receives a SYNC message (null
+     * until the first one). Throws IOException when the connection is closed.
+     */
+    public NES runFrame(NES nes, byte localButtons) throws IOException {
+        pressedButtons = localButtons;
+        final int previousFrame = frame;
+        frameBlockedNanos = 0;
+        nes = runNextFrame(nes);
+        final long bytesSent = transport.getBytesSent();
+        stats.recordFrame(frameBlockedNanos, frame == previousFrame,
+                bytesSent - lastBytesSent);
+        lastBytesSent = bytesSent;
+        final long origin = peerFrameOriginNanos;
+        if (origin != 0)
+            stats.recordFramesAhead(frame -
+                    (int)((System.nanoTime() - origin) / NANOSECS_PER_FRAME));
+        return nes;
+    }
+
+    private NES runNextFrame(NES nes) throws IOException {
+        nes = handleMessages(nes);
+        if (isResyncNeeded && !isWaitingForSync) {
+            isResyncNeeded = false;
+            sendSync(nes);
+        }
+        // The server goes on until the resume frame while the client loads
+        // the sync.
+        if (isWaitingForSync && !(isServer && frame < resumeFrame))
+            return nes;
+        if (--framesUntilPing <= 0) {
+            pingPayload.clear();
+            pingPayload.putLong(System.nanoTime()).flip();
+            transport.sendMessage(PING_MESSAGE, frame, pingPayload);
+            framesUntilPing = FRAMES_PER_PING;
+            if (isInputDelayAuto)
+                inputDelay = getAutoInputDelay();
+        }
+        if (mode == Mode.LOCKSTEP) {
+            sendLocalInput();
+            while (lastRemoteFrame < frame && !isWaitingForSync) {
+                awaitArrival();
+                nes = handleMessages(nes);
+            }
+            if (lastRemoteFrame < frame)
+                return nes;
+            if (frame == nextHashFrame)
+                hashFrame(nes, null);
+            if (broadcaster != null)
+                broadcast(nes, frame, null);
+            emulateFrame(nes, remoteInputs[frame & HISTORY_MASK]);
+        } else {
+            if (rollbackFrame >= 0)
+                rollBack(nes);
+            // Too far ahead of the peer to roll back if needed.
+            if (frame - lastRemoteFrame > MAX_ROLLBACK_FRAMES)
+                return nes;
+            sendLocalInput();
+            nes.saveState(getSnapshot(nes, frame));
+            // The snapshot of a frame is final once the inputs of every frame
+            // before it are known.
+            final int lastFinalSnapshot = Math.min(frame, lastRemoteFrame + 1);
+            if (nextHashFrame <= lastFinalSnapshot) {
+                if (frame - nextHashFrame < SNAPSHOTS_SIZE)
+                    hashFrame(nes, snapshots[nextHashFrame & SNAPSHOTS_MASK]);
+                else
+                    nextHashFrame += FRAMES_PER_HASH;
+            }
+            if (broadcaster != null)
+                broadcast(nes, lastFinalSnapshot,
+                        frame - lastFinalSnapshot < SNAPSHOTS_SIZE ?
+                        snapshots[lastFinalSnapshot & SNAPSHOTS_MASK] : null);
+            emulateFrame(nes, predictRemoteInput(frame));
+        }
+        frame++;
+        return nes;
+    }
+
+    // Handles the queued messages, then takes the inputs received so far.
+    private NES handleMessages(NES nes) throws IOException {
+        Message message;
+        while ((message = messages.poll()) != null)
+            nes = handleMessage(message, nes);
+        if (!isWaitingForSync)
+            for (int last = lastReceivedFrame; lastRemoteFrame < last; )
+                receiveRemoteInput(lastRemoteFrame + 1);
+        return nes;
+    }
+
+    private void awaitArrival() throws IOException {
+        final long startTime = System.nanoTime();
+        synchronized (arrivalLock) {
+            try {
+                while (lastReceivedFrame <= lastRemoteFrame && messages.isEmpty())
+                    arrivalLock.wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the peer", ex);
+            }
+        }
+        frameBlockedNanos += System.nanoTime() - startTime;
+    }
+
+    private NES handleMessage(Message message, NES nes) throws IOException {
+        switch (message.type) {
+            case MODE:
+                mode = message.mode;
+                break;
+            case SYNC_STARTED:
+                isWaitingForSync = true;
+                syncId = message.syncId;
+                resetHashes(message.frame);
+                break;
+            case SYNC:
+                final NetplaySync.Snapshot snapshot = message.snapshot;
+                nes = new NES(snapshot.cartridge);
+                nes.readState(ByteBuffer.wrap(snapshot.state));
+                nes.setFrameSink(frameSink);
+                startTimeline(snapshot.syncFrame, snapshot.resumeFrame);
+                isWaitingForSync = false;
+                transport.sendMessage(READY_MESSAGE, snapshot.resumeFrame,
+                        ByteBuffer.allocate(4).putInt(0, snapshot.syncId));
+                break;
+            case READY:
+                if (isWaitingForSync && message.syncId == syncId)
+                    isWaitingForSync = false;
+                break;
+            case HASH:
+                if (message.syncId == syncId) {
+                    final int index = getHashIndex(message.frame);
+                    remoteHashFrames[index] = message.frame;
+                    System.arraycopy(message.hashes, 0, remoteHashes,
+                            index * HASH_COUNT, HASH_COUNT);
+                    compareHashes(message.frame);
+                }
+                break;
+            case CLOSED:
+                throw new IOException("Connection closed");
+        }
+        return nes;
+    }
+
+    // Restarts the session at the start frame; the client's input is empty
+    // until the resume frame.
+    private void startTimeline(int startFrame, int resumeFrame) {
+        this.resumeFrame = resumeFrame;
+        frame = startFrame;
+        final byte clientInputs[] = isServer ? remoteInputs : localInputs;
+        for (int f = startFrame - 1; f < resumeFrame; f++)
+            clientInputs[f & HISTORY_MASK] = 0;
+        remoteInputs[(startFrame - 1) & HISTORY_MASK] = 0;
+        lastRemoteFrame = (isServer ? resumeFrame : startFrame) - 1;
+        lastLocalFrame = (isServer ? startFrame : resumeFrame) - 1;
+        framesUntilPing = 0;
+        rollbackFrame = -1;
+    }
+
+    // Forgets the hashes of the previous sync; the first frame hashed is the
+    // first multiple of FRAMES_PER_HASH after the start frame.
+    private void resetHashes(int startFrame) {
+        Arrays.fill(localHashFrames, -1);
+        Arrays.fill(remoteHashFrames, -1);
+        nextHashFrame = (startFrame / FRAMES_PER_HASH + 1) * FRAMES_PER_HASH;
+    }
+
+    private static int getHashIndex(int hashedFrame) {
+        return (hashedFrame / FRAMES_PER_HASH) & HASH_HISTORY_MASK;
+    }
+
+    /* Hashes the state at the start of nextHashFrame, either from the NES
+     * (which must be at that frame) or from the snapshot taken then, and
+     * sends the hashes to the peer.
+     */
+    private void hashFrame(NES nes, StateBuffer snapshot) throws IOException {
+        if (stateHash == null || !stateHash.fits(nes))
+            stateHash = new StateHash(nes);
+        if (snapshot == null)
+            stateHash.compute(nes);
+        else
+            stateHash.compute(snapshot);
+        final int hashedFrame = nextHashFrame;
+        nextHashFrame += FRAMES_PER_HASH;
+        final int index = getHashIndex(hashedFrame);
+        localHashFrames[index] = hashedFrame;
+        hashPayload.clear();
+        hashPayload.putInt(syncId);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            localHashes[index * HASH_COUNT + i] = stateHash.get(i);
+            hashPayload.putLong(stateHash.get(i));
+        }
+        hashPayload.flip();
+        transport.sendMessage(HASH_MESSAGE, hashedFrame, hashPayload);
+        compareHashes(hashedFrame);
+    }
+
+    // Called when either hash of a frame is known; does nothing until both
+    // are.
+    private void compareHashes(int hashedFrame) {
+        final int index = getHashIndex(hashedFrame);
+        if (localHashFrames[index] != hashedFrame ||
+                remoteHashFrames[index] != hashedFrame)
+            return;
+        int firstMismatch = -1;
+        for (int i = HASH_COUNT - 1; i >= 0; i--)
+            if (localHashes[index * HASH_COUNT + i] != remoteHashes[index * HASH_COUNT + i])
+                firstMismatch = i;
+        localHashFrames[index] = -1;
+        if (firstMismatch < 0)
+            return;
+        desyncCount++;
+        final StringBuilder dump = new StringBuilder();
+        dump.append("Netplay desync at frame ").append(hashedFrame)
+                .append(", first in ").append(NES.STATE_COMPONENT_NAMES[firstMismatch])
+                .append(isServer ? "; resyncing" : "; waiting for the server to resync");
+        for (int i = 0; i < HASH_COUNT; i++)
+            dump.append(String.format("%n  %-10s local %016x, remote %016x",
+                    NES.STATE_COMPONENT_NAMES[i], localHashes[index * HASH_COUNT + i],
+                    remoteHashes[index * HASH_COUNT + i]));
+        Logger.getLogger(NetplaySession.class.getName()).log(Level.WARNING,
+                dump.toString());
+        if (isServer)
+            isResyncNeeded = true;
+    }
+
+    /* Publishes the inputs that have become final (i. e. those of both
+     * players are known) to the spectators, and the final snapshot of the
+     * given frame if one has connected. The snapshot is taken from the NES
+     * when it's null and the frame is the current one; otherwise, it's only
+     * sent if it's still kept.
+     */
+    private void broadcast(NES nes, int snapshotFrame, StateBuffer snapshot) {
+        if (broadcaster.isSnapshotWanted()) {
+            if (snapshot != null)
+                broadcaster.publishSnapshot(snapshotFrame, nes.cartridge,
+                        Arrays.copyOf(snapshot.array(), snapshot.size()));
+            else if (snapshotFrame == frame) {
+                final byte state[] = new byte[nes.getStateSize()];
+                nes.writeState(ByteBuffer.wrap(state));
+                broadcaster.publishSnapshot(frame, nes.cartridge, state);
+            }
+        }
+        final int lastFinalFrame = Math.min(lastRemoteFrame, lastLocalFrame);
+        for (int f = broadcaster.getLastPublishedFrame() + 1; f <= lastFinalFrame; f++)
+            broadcaster.publishInputs(f, localInputs[f & HISTORY_MASK],
+                    remoteInputs[f & HISTORY_MASK]);
+        broadcaster.flush();
+    }
+
+    private void receiveRemoteInput(int remoteFrame) {
+        final byte buttons = receivedInputs[remoteFrame & HISTORY_MASK];
+        remoteInputs[remoteFrame & HISTORY_MASK] = buttons;
+        lastRemoteFrame = remoteFrame;
+        if (mode == Mode.ROLLBACK && remoteFrame < frame &&
+                predictedRemoteInputs[remoteFrame & HISTORY_MASK] != buttons &&
+                (rollbackFrame < 0 || remoteFrame < rollbackFrame))
+            rollbackFrame = remoteFrame;
+    }
+
+    private int getAutoInputDelay() {
+        if (mode == Mode.ROLLBACK)
+            return 0;
+        final long oneWayNanos = roundTripNanos / 2;
+        final int frames = (int)((oneWayNanos + NANOSECS_PER_FRAME - 1) /
+                NANOSECS_PER_FRAME) + 1;
+        return Math.min(frames, MAX_INPUT_DELAY);
+    }
+
+    // Sends the input read now as the one for frame + inputDelay (and for any
+    // frames before it that haven't been sent, if the delay has grown).
+    private void sendLocalInput() throws IOException {
+        final int targetFrame = frame + inputDelay;
+        if (lastLocalFrame >= targetFrame)
+            return;
+        while (lastLocalFrame < targetFrame) {
+            lastLocalFrame++;
+            localInputs[lastLocalFrame & HISTORY_MASK] = pressedButtons;
+            transport.sendInput(lastLocalFrame, pressedButtons);
+        }
+        transport.flush();
+    }
+
+    private byte predictRemoteInput(int predictedFrame) {
+        final byte buttons = remoteInputs[(predictedFrame <= lastRemoteFrame ?
+                predictedFrame : lastRemoteFrame) & HISTORY_MASK];
+        predictedRemoteInputs[predictedFrame & HISTORY_MASK] = buttons;
+        return buttons;
+    }
+
+    private void emulateFrame(NES nes, byte remoteButtons) {
+        final byte localButtons = localInputs[frame & HISTORY_MASK];
+        if (isServer)
+            nes.controller.setButtonStates(localButtons, remoteButtons);
+        else
+            nes.controller.setButtonStates(remoteButtons, localButtons);
+        nes.runUntilFrameReady();
+    }
+
+    /* Restores the snapshot of the first mispredicted frame and runs the
+     * frames since then again, with the inputs received so far. These frames
+     * have already been displayed, so they are not rendered again.
+     */
+    private void rollBack(NES nes) {
+        final int currentFrame = frame;
+        frame = rollbackFrame;
+        rollbackFrame = -1;
+        nes.loadState(snapshots[frame & SNAPSHOTS_MASK]);
+        nes.setFrameSink(FrameSink.DISCARD);
+        for (; frame < currentFrame; frame++) {
+            nes.saveState(snapshots[frame & SNAPSHOTS_MASK]);
+            emulateFrame(nes, predictRemoteInput(frame));
+        }
+        nes.setFrameSink(frameSink);
+    }
+
+    private StateBuffer getSnapshot(NES nes, int snapshotFrame) {
+        if (snapshots == null || snapshots[0].capacity() < nes.getStateSize()) {
+            snapshots = new StateBuffer[SNAPSHOTS_SIZE];
+            for (int i = 0; i < SNAPSHOTS_SIZE; i++)
+                snapshots[i] = new StateBuffer(nes);
+        }
+        return snapshots[snapshotFrame & SNAPSHOTS_MASK];
+    }
+}
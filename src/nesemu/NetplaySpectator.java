@@ -0,0 +1,180 @@
+package nesemu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/* Watches a netplay session from a NetplayBroadcaster: the game is loaded
+ * from the sync sent when connecting (or from the spectator's library, see
+ * NetplaySync), and then run with the inputs of both players, so the
+ * spectator sees the same game as the players, without taking part in it.
+ *
+ * As in NetplaySession, inputs are written by the transport's thread into a
+ * ring and published through lastReceivedFrame, and the rest of the messages
+ * go through a queue. The spectator waits for the inputs of each frame; when
+ * it falls more than CATCH_UP_FRAMES behind the inputs received (e. g. after
+ * waiting for the ROMs), it runs the extra frames without displaying them.
+ */
+
+public class NetplaySpectator {
+    private static final int CATCH_UP_FRAMES = 8;
+    private static final int HISTORY_SIZE = 4096;
+    private static final int HISTORY_MASK = HISTORY_SIZE - 1;
+    private static final Object SYNC_STARTED = new Object();
+
+    private final NetplayTransport transport;
+    private final FrameSink frameSink;
+    private final NetplaySync.Assembler syncAssembler;
+    private final BlockingQueue<Object> messages;
+
+    // Inputs of both players as received, and the last frame received.
+    private final byte receivedInputs[];
+    private volatile int lastReceivedFrame;
+    private final Object arrivalLock;
+
+    // Only accessed from the emulation thread.
+    private int frame;
+    private boolean isWaitingForSync;
+
+    // The library (which may be null) is looked up for the game first.
+    public NetplaySpectator(NetplayTransport transport, FrameSink frameSink,
+            RomLibrary library) {
+        this.transport = transport;
+        this.frameSink = frameSink;
+        syncAssembler = new NetplaySync.Assembler(library);
+        messages = new LinkedBlockingQueue<>();
+        receivedInputs = new byte[2 * HISTORY_SIZE];
+        arrivalLock = new Object();
+        isWaitingForSync = true;
+        transport.start(new Receiver());
+    }
+
+    public int getFrame() {
+        return frame;
+    }
+
+    public void close() {
+        transport.close();
+    }
+
+    // The queue holds SYNC_STARTED, the syncs received, and the exception
+    // that closed the connection.
+    private class Receiver implements NetplayTransport.Listener {
+        @Override
+        public void inputReceived(int frame, byte buttons) {
+            // Inputs come in INPUTS_MESSAGE messages instead
+        }
+
+        @Override
+        public void messageReceived(byte type, int frame, ByteBuffer payload) {
+            try {
+                switch (type) {
+                    case NetplayBroadcaster.SYNC_MESSAGE:
+                        synchronized (arrivalLock) {
+                            lastReceivedFrame = frame - 1;
+                        }
+                        addMessage(SYNC_STARTED);
+                        if (!syncAssembler.start(frame, payload))
+                            transport.sendMessage(NetplayBroadcaster.ROM_REQUEST_MESSAGE,
+                                    frame, ByteBuffer.allocate(4).putInt(0,
+                                            syncAssembler.getSyncId()));
+                        break;
+                    case NetplayBroadcaster.SYNC_DATA_MESSAGE:
+                        final NetplaySync.Snapshot snapshot = syncAssembler.add(payload);
+                        if (snapshot != null)
+                            addMessage(snapshot);
+                        break;
+                    case NetplayBroadcaster.INPUTS_MESSAGE:
+                        int f = frame;
+                        for (; payload.remaining() >= 2; f++)
+                            payload.get(receivedInputs, 2 * (f & HISTORY_MASK), 2);
+                        synchronized (arrivalLock) {
+                            lastReceivedFrame = f - 1;
+                            arrivalLock.notifyAll();
+                        }
+                        break;
+                }
+            } catch (IOException | UnsupportedMapperException |
+                    RuntimeException ex) {
+                transport.close();
+            }
+        }
+
+        @Override
+        public void closed() {
+            addMessage(new IOException("Connection closed"));
+        }
+    }
+
+    private void addMessage(Object message) {
+        synchronized (arrivalLock) {
+            messages.add(message);
+            arrivalLock.notifyAll();
+        }
+    }
+
+    /* Runs the next frame (or more, when catching up), once its inputs have
+     * been received. Returns the NES being watched, which is a new one after
+     * each sync (and null until the first one). Throws IOException when the
+     * connection is closed.
+     */
+    public NES runFrame(NES nes) throws IOException {
+        nes = handleMessages(nes);
+        if (isWaitingForSync)
+            return nes;
+        awaitArrival();
+        nes = handleMessages(nes);
+        final int lastFrame = lastReceivedFrame;
+        if (isWaitingForSync || lastFrame < frame)
+            return nes;
+        if (lastFrame - frame >= HISTORY_SIZE)
+            throw new IOException("Too far behind the game");
+        if (lastFrame - frame > CATCH_UP_FRAMES) {
+            nes.setFrameSink(FrameSink.DISCARD);
+            while (lastFrame - frame > CATCH_UP_FRAMES)
+                runNextFrame(nes);
+            nes.setFrameSink(frameSink);
+        }
+        runNextFrame(nes);
+        return nes;
+    }
+
+    private NES handleMessages(NES nes) throws IOException {
+        Object message;
+        while ((message = messages.poll()) != null) {
+            if (message instanceof IOException)
+                throw (IOException)message;
+            if (message == SYNC_STARTED) {
+                isWaitingForSync = true;
+                continue;
+            }
+            final NetplaySync.Snapshot snapshot = (NetplaySync.Snapshot)message;
+            nes = new NES(snapshot.cartridge);
+            nes.readState(ByteBuffer.wrap(snapshot.state));
+            nes.setFrameSink(frameSink);
+            frame = snapshot.syncFrame;
+            isWaitingForSync = false;
+        }
+        return nes;
+    }
+
+    private void awaitArrival() throws IOException {
+        synchronized (arrivalLock) {
+            try {
+                while (lastReceivedFrame < frame && messages.isEmpty())
+                    arrivalLock.wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the game", ex);
+            }
+        }
+    }
+
+    private void runNextFrame(NES nes) {
+        final int index = 2 * (frame & HISTORY_MASK);
+        nes.controller.setButtonStates(receivedInputs[index], receivedInputs[index + 1]);
+        nes.runUntilFrameReady();
+        frame++;
+    }
+}
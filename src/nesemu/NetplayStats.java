@@ -0,0 +1,201 @@
+package nesemu;
+
+/* Statistics of a netplay session, to tell why it stutters (and to tune the
+ * input delay, or choose between LOCKSTEP and ROLLBACK): for every frame, the
+ * time spent waiting for the peer, how far ahead of the peer the emulator is
+ * and the bytes sent; and for every PING, the round-trip time, the one-way
+ * delay and the jitter.
+ *
+ * The one-way delay can't be measured without synchronized clocks, so it's
+ * the transit time of each PING (the time it arrived, minus the peer's time
+ * it was sent) above the shortest one seen: the time it spent queued
+ * somewhere. The jitter is the difference between the transit times of
+ * consecutive PINGs (as in RFC 3550), and is also smoothed into a live value.
+ *
+ * Samples go into histograms of fixed-width buckets, allocated up front, so
+ * recording doesn't allocate. Each histogram has a single writer (the
+ * emulation thread, or the transport's thread for PINGs and PONGs); other
+ * threads only read them for display, and may see a sample half recorded.
+ */
+
+public class NetplayStats {
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    // Values of the samples (in the histogram's unit), clamped to the range
+    // of the buckets, the last one of which also holds everything above it.
+    public static final class Histogram {
+        private final String name;
+        private final String unit;
+        private final long unitNanos;
+        private final long minimum;
+        private final long bucketWidth;
+        private final long counts[];
+        private long count;
+        private long sum;
+        private long max;
+        private long last;
+
+        /* Values are in nanoseconds when unitNanos is positive, and shown in
+         * milliseconds; otherwise, they are shown as they are.
+         */
+        Histogram(String name, String unit, long unitNanos, long minimum,
+                long bucketWidth, int bucketCount) {
+            this.name = name;
+            this.unit = unit;
+            this.unitNanos = unitNanos;
+            this.minimum = minimum;
+            this.bucketWidth = bucketWidth;
+            counts = new long[bucketCount];
+            max = Long.MIN_VALUE;
+        }
+
+        void record(long value) {
+            final long bucket = (value - minimum) / bucketWidth;
+            counts[(int)Math.max(0, Math.min(bucket, counts.length - 1))]++;
+            count++;
+            sum += value;
+            max = Math.max(max, value);
+            last = value;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getLast() {
+            return last;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double)sum / count;
+        }
+
+        /* The upper bound of the bucket holding the given fraction of the
+         * samples (e. g. 0.99 for the 99th percentile), or the largest sample
+         * if it's in the last bucket.
+         */
+        public long getPercentile(double fraction) {
+            long seen = 0;
+            for (int i = 0; i < counts.length - 1; i++) {
+                seen += counts[i];
+                if (seen > 0 && seen >= fraction * count)
+                    return Math.min(minimum + (i + 1) * bucketWidth, max);
+            }
+            return max;
+        }
+
+        public String format(double value) {
+            return unitNanos > 0 ?
+                    String.format("%.1f %s", value / unitNanos, unit) :
+                    String.format("%.1f %s", value, unit);
+        }
+
+        // Count, mean, median, 99th percentile and max.
+        @Override
+        public String toString() {
+            if (count == 0)
+                return String.format("%-14s no samples", name);
+            return String.format("%-14s n %7d  mean %10s  p50 %10s  p99 %10s  max %10s",
+                    name, count, format(getMean()), format(getPercentile(0.5)),
+                    format(getPercentile(0.99)), format(max));
+        }
+    }
+
+    // Per frame (frames ahead, once a PING has arrived).
+    public final Histogram blockedNanos;
+    public final Histogram framesAhead;
+    public final Histogram bytesSent;
+    // Per PING or PONG.
+    public final Histogram roundTripNanos;
+    public final Histogram oneWayDelayNanos;
+    public final Histogram jitterNanos;
+
+    private long stalledFrames;
+    // Only accessed from the transport's thread.
+    private long minimumTransitNanos;
+    private long lastTransitNanos;
+    private boolean hasTransit;
+    private volatile long smoothedJitterNanos;
+
+    public NetplayStats() {
+        blockedNanos = new Histogram("Blocked", "ms", NANOS_PER_MILLI,
+                0, NANOS_PER_MILLI / 10, 1000);
+        framesAhead = new Histogram("Frames ahead", "frames", 0, -64, 1, 129);
+        bytesSent = new Histogram("Bytes sent", "B", 0, 0, 8, 1024);
+        roundTripNanos = new Histogram("Round trip", "ms", NANOS_PER_MILLI,
+                0, NANOS_PER_MILLI, 1000);
+        oneWayDelayNanos = new Histogram("One-way delay", "ms", NANOS_PER_MILLI,
+                0, NANOS_PER_MILLI, 1000);
+        jitterNanos = new Histogram("Jitter", "ms", NANOS_PER_MILLI,
+                0, NANOS_PER_MILLI / 10, 1000);
+    }
+
+    /* A call to NetplaySession.runFrame(): the time it spent waiting for the
+     * peer, whether it had to return without running a frame, and the bytes
+     * sent since the last one.
+     */
+    void recordFrame(long blocked, boolean isStalled, long bytes) {
+        blockedNanos.record(blocked);
+        if (isStalled)
+            stalledFrames++;
+        bytesSent.record(bytes);
+    }
+
+    // Once the peer's frame is known.
+    void recordFramesAhead(int frames) {
+        framesAhead.record(frames);
+    }
+
+    void recordRoundTrip(long nanos) {
+        roundTripNanos.record(nanos);
+    }
+
+    // The peer's time when it sent a PING, and the local time it arrived.
+    void recordPing(long sentTime, long arrivalTime) {
+        final long transit = arrivalTime - sentTime;
+        if (!hasTransit || transit < minimumTransitNanos)
+            minimumTransitNanos = transit;
+        oneWayDelayNanos.record(transit - minimumTransitNanos);
+        if (hasTransit) {
+            final long difference = Math.abs(transit - lastTransitNanos);
+            jitterNanos.record(difference);
+            smoothedJitterNanos += (difference - smoothedJitterNanos) / 16;
+        }
+        lastTransitNanos = transit;
+        hasTransit = true;
+    }
+
+    // Calls to runFrame() that didn't run a frame.
+    public long getStalledFrames() {
+        return stalledFrames;
+    }
+
+    public long getSmoothedJitterNanos() {
+        return smoothedJitterNanos;
+    }
+
+    // For the status bar.
+    public String getLiveSummary(long smoothedRoundTripNanos) {
+        return String.format("RTT %d ms, jitter %.1f ms, %d frames ahead, " +
+                "blocked %.1f ms, %d B/frame",
+                smoothedRoundTripNanos / NANOS_PER_MILLI,
+                (double)smoothedJitterNanos / NANOS_PER_MILLI, framesAhead.getLast(),
+                (double)blockedNanos.getLast() / NANOS_PER_MILLI, bytesSent.getLast());
+    }
+
+    @Override
+    public String toString() {
+        final String lineSeparator = System.lineSeparator();
+        return "Netplay stats (" + stalledFrames + " stalled frames)" + lineSeparator +
+                "  " + blockedNanos + lineSeparator +
+                "  " + framesAhead + lineSeparator +
+                "  " + bytesSent + lineSeparator +
+                "  " + roundTripNanos + lineSeparator +
+                "  " + oneWayDelayNanos + lineSeparator +
+                "  " + jitterNanos;
+    }
+}
@@ -0,0 +1,298 @@
+package nesemu;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/* Transfers the server's game to the client when a netplay session is
+ * (re)started. The SYNC message only carries a header: the hash and iNES
+ * header of the cartridge's ROMs, the game's name and the frames the sync
+ * starts and resumes at. The client looks for ROMs with that hash in RomPool
+ * (i. e. among the games it's already running) and in its RomLibrary, and
+ * only asks for them (with a ROM request) if it can't find them.
+ *
+ * The snapshot of the NES (and the ROMs, if requested) are then compressed
+ * and sent as a series of data messages of up to CHUNK_SIZE bytes each, from
+ * a background thread, so the server's emulation thread only has to take the
+ * snapshot, and other messages (inputs, pings) are not held back behind a
+ * large transfer. A sync is identified by a number, so data left over from a
+ * sync that has been superseded by a newer one is ignored (and no longer
+ * sent).
+ */
+
+final class NetplaySync {
+    static final int CHUNK_SIZE = 16 * 1024;
+
+    static final byte ROM_DATA = 0;
+    static final byte STATE_DATA = 1;
+    // Sync number, kind of data and whether it's the last chunk.
+    private static final int CHUNK_HEADER_SIZE = 6;
+
+    // A complete sync, as received by the client.
+    static final class Snapshot {
+        final int syncId;
+        final int syncFrame;
+        final int resumeFrame;
+        final Cartridge cartridge;
+        final byte state[];
+
+        private Snapshot(int syncId, int syncFrame, int resumeFrame,
+                Cartridge cartridge, byte[] state) {
+            this.syncId = syncId;
+            this.syncFrame = syncFrame;
+            this.resumeFrame = resumeFrame;
+            this.cartridge = cartridge;
+            this.state = state;
+        }
+    }
+
+    private NetplaySync() {
+
+    }
+
+    static ByteBuffer writeHeader(int syncId, int resumeFrame, Cartridge cartridge,
+            int stateSize) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(syncId);
+        out.writeInt(resumeFrame);
+        out.write(cartridge.romHash);
+        out.write(cartridge.getINESHeaderBytes());
+        out.writeUTF(cartridge.getName());
+        out.writeInt(stateSize);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    static int readSyncId(ByteBuffer payload) {
+        return payload.getInt(payload.position());
+    }
+
+    // Receives the payloads of a sync's data messages; returns false to
+    // abandon the transfer. The payload is only valid until it returns.
+    interface ChunkSink {
+        boolean accept(ByteBuffer payload) throws IOException;
+    }
+
+    /* Compresses data of the given kind (ROM_DATA or STATE_DATA) into the
+     * payloads of a sync's data messages, using a chunk array of at least
+     * CHUNK_HEADER_SIZE + CHUNK_SIZE bytes.
+     */
+    static void writeChunks(int syncId, byte kind, byte[] data, Deflater deflater,
+            byte[] chunk, ChunkSink sink) throws IOException {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        while (!deflater.finished()) {
+            final int length = deflater.deflate(chunk, CHUNK_HEADER_SIZE, CHUNK_SIZE);
+            final ByteBuffer payload = ByteBuffer.wrap(chunk, 0,
+                    CHUNK_HEADER_SIZE + length);
+            payload.putInt(syncId).put(kind)
+                    .put((byte)(deflater.finished() ? 1 : 0)).rewind();
+            if (!sink.accept(payload))
+                return;
+        }
+    }
+
+    static byte[] newChunkArray() {
+        return new byte[CHUNK_HEADER_SIZE + CHUNK_SIZE];
+    }
+
+    static byte[] getINESImage(Cartridge cartridge) {
+        final ByteArrayOutputStream image = new ByteArrayOutputStream();
+        try {
+            cartridge.writeINESImage(image);
+        } catch (IOException ex) {
+            // Not thrown by ByteArrayOutputStream
+        }
+        return image.toByteArray();
+    }
+
+    // Server side: sends the data of the current sync on a background thread.
+    static final class Sender {
+        private final NetplayTransport transport;
+        private final byte dataMessageType;
+        private final ExecutorService executor;
+        // Only used from the executor's thread.
+        private final Deflater deflater;
+        private final byte chunk[];
+        private volatile int currentSyncId;
+        private volatile Cartridge currentCartridge;
+
+        Sender(NetplayTransport transport, byte dataMessageType) {
+            this.transport = transport;
+            this.dataMessageType = dataMessageType;
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "Netplay sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            chunk = newChunkArray();
+        }
+
+        // Starts sending the snapshot of a new sync, abandoning the previous one.
+        void start(int syncId, Cartridge cartridge, byte[] state) {
+            currentSyncId = syncId;
+            currentCartridge = cartridge;
+            executor.execute(() -> send(syncId, STATE_DATA, state));
+        }
+
+        // Called when the client asks for the ROMs of a sync.
+        void sendROM(int syncId) {
+            final Cartridge cartridge = currentCartridge;
+            if (syncId != currentSyncId || cartridge == null)
+                return;
+            executor.execute(() -> send(syncId, ROM_DATA, getINESImage(cartridge)));
+        }
+
+        private void send(int syncId, byte kind, byte[] data) {
+            try {
+                writeChunks(syncId, kind, data, deflater, chunk, payload -> {
+                    if (syncId != currentSyncId)
+                        return false;
+                    transport.sendMessage(dataMessageType, 0, payload);
+                    return true;
+                });
+            } catch (IOException ex) {
+                // The connection is closed; the session finds out on its own
+            }
+        }
+
+        void shutdown() {
+            currentSyncId = 0;
+            executor.shutdownNow();
+        }
+    }
+
+    /* Client side: puts together the syncs received, on the transport's
+     * thread.
+     */
+    static final class Assembler {
+        private final RomLibrary library;
+        private int syncId;
+        private int syncFrame;
+        private int resumeFrame;
+        private byte romHash[];
+        private INESHeader header;
+        private String name;
+        private int stateSize;
+        private Cartridge cartridge;
+        private ByteArrayOutputStream romData;
+        private ByteArrayOutputStream stateData;
+        private boolean isStateComplete;
+
+        // The library may be null.
+        Assembler(RomLibrary library) {
+            this.library = library;
+        }
+
+        /* Starts putting together a new sync, abandoning the previous one.
+         * Returns false if the ROMs are not available locally, in which case
+         * they must be requested.
+         */
+        boolean start(int syncFrame, ByteBuffer payload) throws IOException,
+                UnsupportedMapperException {
+            final byte bytes[] = new byte[payload.remaining()];
+            payload.get(bytes);
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            syncId = in.readInt();
+            this.syncFrame = syncFrame;
+            resumeFrame = in.readInt();
+            romHash = new byte[20];
+            in.readFully(romHash);
+            final byte headerBytes[] = new byte[INESHeader.SIZE];
+            in.readFully(headerBytes);
+            header = INESHeader.read(ByteBuffer.wrap(headerBytes));
+            name = in.readUTF();
+            stateSize = in.readInt();
+            romData = new ByteArrayOutputStream();
+            stateData = new ByteArrayOutputStream();
+            isStateComplete = false;
+            cartridge = findCartridge();
+            return cartridge != null;
+        }
+
+        int getSyncId() {
+            return syncId;
+        }
+
+        private Cartridge findCartridge() throws UnsupportedMapperException {
+            Cartridge found = Cartridge.fromRomPool(romHash, header, name);
+            if (found != null || library == null)
+                return found;
+            final RomLibrary.Entry entry = library.findBySHA1(romHash);
+            if (entry == null)
+                return null;
+            try {
+                // Loading it puts its ROMs in the pool (if the file hasn't
+                // changed since it was indexed).
+                final Cartridge loaded = Cartridge.fromINESFile(entry.path);
+                if (Arrays.equals(loaded.romHash, romHash))
+                    found = Cartridge.fromRomPool(romHash, header, name);
+            } catch (IOException | IllegalArgumentException ex) {
+                return null;
+            }
+            return found;
+        }
+
+        /* Adds a data message to the current sync. Returns the sync once
+         * both the snapshot and the ROMs are complete, and null otherwise.
+         */
+        Snapshot add(ByteBuffer payload) throws IOException,
+                UnsupportedMapperException, IllegalArgumentException {
+            if (romData == null || payload.getInt() != syncId)
+                return null;
+            final byte kind = payload.get();
+            final boolean isLast = payload.get() != 0;
+            final ByteArrayOutputStream data = kind == ROM_DATA ? romData : stateData;
+            data.write(payload.array(), payload.arrayOffset() + payload.position(),
+                    payload.remaining());
+            if (isLast && kind == ROM_DATA)
+                cartridge = readCartridge();
+            else if (isLast)
+                isStateComplete = true;
+            if (cartridge == null || !isStateComplete)
+                return null;
+            final Snapshot snapshot = new Snapshot(syncId, syncFrame, resumeFrame,
+                    cartridge, inflate(stateData.toByteArray(), stateSize));
+            romData = null;
+            stateData = null;
+            cartridge = null;
+            return snapshot;
+        }
+
+        private Cartridge readCartridge() throws IOException,
+                UnsupportedMapperException, IllegalArgumentException {
+            final Cartridge received = Cartridge.fromINESStream(new InflaterInputStream(
+                    new ByteArrayInputStream(romData.toByteArray())), name);
+            if (!Arrays.equals(received.romHash, romHash))
+                throw new IllegalArgumentException("The ROMs received don't match their hash");
+            return received;
+        }
+
+        private static byte[] inflate(byte[] compressed, int size) throws IOException {
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                final byte data[] = new byte[size];
+                if (inflater.inflate(data) != size || !inflater.finished())
+                    throw new IOException("Corrupt snapshot");
+                return data;
+            } catch (DataFormatException ex) {
+                throw new IOException("Corrupt snapshot", ex);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
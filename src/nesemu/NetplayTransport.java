@@ -0,0 +1,48 @@
+package nesemu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/* Carries a netplay session's messages to the peer. There are two kinds of
+ * messages:
+ *
+ *   - Inputs: the buttons pressed by the local player in a frame. They are
+ *     sent every frame, so they are batched until flush() is called (several
+ *     frames may be sent at once) and must be sent without allocating.
+ *   - Control messages: anything else (e.g. the snapshot sent on a sync),
+ *     made up of a type (1 to 127), a frame number and an optional payload.
+ *
+ * Both are delivered to the peer's listener in the order they were sent, from
+ * a thread owned by the transport. Sending is thread-safe, so listeners may
+ * reply from that thread.
+ */
+
+public interface NetplayTransport {
+    interface Listener {
+        void inputReceived(int frame, byte buttons);
+
+        // The payload is only valid until the method returns.
+        void messageReceived(byte type, int frame, ByteBuffer payload);
+
+        // Called once, when the connection is lost or closed.
+        void closed();
+    }
+
+    // Starts receiving messages; must be called once, before sending any.
+    void start(Listener listener);
+
+    void sendInput(int frame, byte buttons) throws IOException;
+
+    // Sends any pending inputs, then the message, right away. The payload
+    // (which may be null) is sent from its position to its limit.
+    void sendMessage(byte type, int frame, ByteBuffer payload) throws IOException;
+
+    // Sends the pending inputs.
+    void flush() throws IOException;
+
+    // Bytes written to the network so far, including the transport's own
+    // headers (and, over UDP, acknowledgements and resends).
+    long getBytesSent();
+
+    void close();
+}
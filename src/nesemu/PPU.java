@@ -1,12 +1,7 @@
 package nesemu;
 
-import java.awt.image.BufferedImage;
-import java.io.DataInputStream;
-import java.io.IOException;
-import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /* The PPU (Picture Processing Unit) is the NES's graphics processor. In each
  * clock cycle, it outputs a single pixel to the screen. It has its own address
@@ -15,17 +10,13 @@ import java.util.logging.Logger;
  */
 
 public class PPU extends MemoryMapped {
+    public final static int SCREEN_WIDTH = 256;
+    public final static int SCREEN_HEIGHT = 240;
     private final static int PALETTE_MEM_SIZE = 32;
     private final static int NAMETABLE_SIZE = 1024;
     private final static int OAM_SIZE = 256;
-    private final static int NUM_COLORS = 64;
     private final static int MAX_SPRITES_PER_SCANLINE = 8;
 
-    // The palette file was produced using Bisqwit's tool at
-    // https://bisqwit.iki.fi/utils/nespalette.php
-    private final static int[] SYSTEM_PALETTE =
-            readPaletteFromPalFile("/resources/ntscpalette.pal");
-
     public Cartridge cartridge;
     private final byte paletteMemory[];
     private final byte nametableMemory[][];
@@ -43,6 +34,12 @@ public class PPU extends MemoryMapped {
     private int frameCount;
     public boolean isFrameReady;
 
+    // Frames are rendered as color indices (see Palette), along with the
+    // emphasis bits of PPUMASK in effect for each scanline.
+    private final byte frameBuffer[];
+    private final byte scanlineEmphasis[];
+    private FrameSink frameSink;
+
     // The following four registers enable scrolling, which is explained in
     // detail at https://www.nesdev.org/wiki/PPU_scrolling
     private short vramAddress;
@@ -86,12 +83,23 @@ public class PPU extends MemoryMapped {
         regPPUCTRL = new PPUCTRL();
         regPPUMASK = new PPUMASK();
         regPPUSTATUS = new PPUSTATUS();
+        frameBuffer = new byte[SCREEN_WIDTH * SCREEN_HEIGHT];
+        scanlineEmphasis = new byte[SCREEN_HEIGHT];
+        frameSink = FrameSink.DISCARD;
+    }
+
+    byte[] getFrameBuffer() {
+        return frameBuffer;
+    }
+
+    public void setFrameSink(FrameSink frameSink) {
+        this.frameSink = frameSink == null ? FrameSink.DISCARD : frameSink;
     }
 
     // The PPU has a set of internal registers that may be read from and/or written
     // to by the CPU: https://www.nesdev.org/wiki/PPU_registers
 
-    private class PPUCTRL implements Serializable {
+    private class PPUCTRL {
         public boolean incrementVramAddressByWholeRow;
         public boolean usingHighSpritePatternTable;
         public boolean usingHighBackgroundPatternTable;
@@ -105,9 +113,16 @@ public class PPU extends MemoryMapped {
             eightBySixteenMode = (flags & 32) != 0;
             generateNMIOnVBlank = (flags & 128) != 0;
         }
+
+        public byte toByte() {
+            return (byte)((incrementVramAddressByWholeRow ? 4 : 0) |
+                    (usingHighSpritePatternTable ? 8 : 0) |
+                    (usingHighBackgroundPatternTable ? 16 : 0) |
+                    (eightBySixteenMode ? 32 : 0) | (generateNMIOnVBlank ? 128 : 0));
+        }
     }
 
-    private class PPUMASK implements Serializable {
+    private class PPUMASK {
         public boolean grayscale;
         public boolean showBackgroundLeft;
         public boolean showSpritesLeft;
@@ -123,9 +138,15 @@ public class PPU extends MemoryMapped {
             showSprites = (flags & 16) != 0;
             emphasisBits = (flags & 0xE0) >>> 5;
         }
+
+        public byte toByte() {
+            return (byte)((grayscale ? 1 : 0) | (showBackgroundLeft ? 2 : 0) |
+                    (showSpritesLeft ? 4 : 0) | (showBackground ? 8 : 0) |
+                    (showSprites ? 16 : 0) | (emphasisBits << 5));
+        }
     }
 
-    private class PPUSTATUS implements Serializable {
+    private class PPUSTATUS {
         public boolean spriteOverflow;
         public boolean spriteZeroHit;
         public boolean verticalBlank;
@@ -135,6 +156,12 @@ public class PPU extends MemoryMapped {
                     (verticalBlank ? 128 : 0));
         }
 
+        public void update(byte flags) {
+            spriteOverflow = (flags & 32) != 0;
+            spriteZeroHit = (flags & 64) != 0;
+            verticalBlank = (flags & 128) != 0;
+        }
+
         public void reset() {
             spriteOverflow = false;
             spriteZeroHit = false;
@@ -142,30 +169,12 @@ public class PPU extends MemoryMapped {
         }
     }
 
-    private static int[] readPaletteFromPalFile(String fileName) {
-        DataInputStream stream = new DataInputStream(
-                PPU.class.getResourceAsStream(fileName));
-        final int[] colors = new int[NUM_COLORS * 8];
-        try {
-            for (int i = 0; i < colors.length; i++) {
-                byte rgb[] = stream.readNBytes(3);
-                colors[i] = 0xFF000000 | (Byte.toUnsignedInt(rgb[0]) << 16) |
-                        (Byte.toUnsignedInt(rgb[1]) << 8) |
-                        Byte.toUnsignedInt(rgb[2]);
-            }
-        } catch (IOException ex) {
-            Logger.getLogger(PPU.class.getName())
-                    .log(Level.SEVERE, null, ex);
-        }
-        return colors;
-    }
-
     /* As mentioned, each clock tick of the PPU outputs a single pixel. This
      * implementation only supports the NTSC version, and as such it follows the
      * timings of the NTSC NES. For an overview of these timings and the workings
      * of the rendering pipeline, see https://www.nesdev.org/wiki/PPU_rendering
      */
-    public void clockTick(BufferedImage img, CPU cpu) {
+    public void clockTick(CPU cpu) {
         if (scanline >= -1 && scanline < 240) {
             if (scanline == -1 && column == 1) {
                 regPPUSTATUS.verticalBlank = false;
@@ -203,7 +212,7 @@ public class PPU extends MemoryMapped {
                 if (scanline > 0 && regPPUMASK.showSprites &&
                         (column > 8 || regPPUMASK.showSpritesLeft))
                     spriteColorCode = getSpritePixelColorCode();
-                renderPixel(backgroundColorCode, spriteColorCode, img);
+                renderPixel(backgroundColorCode, spriteColorCode);
                 if (column < 255) {
                     shiftSpriteShiftRegisters();
                     decrementSpritesXPositions();
@@ -220,6 +229,7 @@ public class PPU extends MemoryMapped {
         else if (scanline == 241 && column == 1) {
             regPPUSTATUS.verticalBlank = true;
             isFrameReady = true;
+            frameSink.frameReady(frameBuffer, scanlineEmphasis);
             frameCount++;
             if (regPPUCTRL.generateNMIOnVBlank)
                 cpu.requestNMI = true;
@@ -248,15 +258,80 @@ public class PPU extends MemoryMapped {
         regPPUSTATUS.reset();
     }
 
+    @Override
+    void writeState(ByteBuffer buffer) {
+        buffer.put(paletteMemory);
+        for (byte[] nametable : nametableMemory)
+            buffer.put(nametable);
+        buffer.put(oamMemory).put(secondaryOamMemory);
+        buffer.put(regPPUCTRL.toByte()).put(regPPUMASK.toByte())
+                .put(regPPUSTATUS.toByte()).put(regOAMADDR).put(regPPUDATA);
+        buffer.putShort((short)scanline).putShort((short)column).putInt(frameCount);
+        buffer.putShort(vramAddress).putShort(tempVramAddress).put((byte)fineXScroll);
+        buffer.put(nextTilePatternLowByte).put(nextTilePatternHighByte)
+                .put((byte)nextTileAttribute).put((byte)nextTileNumber);
+        buffer.putShort(backgroundPatternLowByteShiftRegister)
+                .putShort(backgroundPatternHighByteShiftRegister)
+                .putShort(backgroundAttributeLowByteShiftRegister)
+                .putShort(backgroundAttributeHighByteShiftRegister);
+        buffer.put(spritePatternLowByteShiftRegisters)
+                .put(spritePatternHighByteShiftRegisters)
+                .put(spriteAttributes).put(spriteXPositions);
+        buffer.put((byte)backgroundColorNumber).put((byte)spriteColorNumber);
+        buffer.put((byte)((isFrameReady ? 1 : 0) | (firstByteWritten ? 2 : 0) |
+                (isSpriteZeroLoadedToSecondaryOam ? 4 : 0) |
+                (isSpriteZeroInScanline ? 8 : 0) | (renderingSpriteZero ? 16 : 0) |
+                (spriteHasPriorityOverBackground ? 32 : 0)));
+    }
+
+    @Override
+    void readState(ByteBuffer buffer) {
+        buffer.get(paletteMemory);
+        for (byte[] nametable : nametableMemory)
+            buffer.get(nametable);
+        buffer.get(oamMemory).get(secondaryOamMemory);
+        regPPUCTRL.update(buffer.get());
+        regPPUMASK.update(buffer.get());
+        regPPUSTATUS.update(buffer.get());
+        regOAMADDR = buffer.get();
+        regPPUDATA = buffer.get();
+        scanline = buffer.getShort();
+        column = buffer.getShort();
+        frameCount = buffer.getInt();
+        vramAddress = buffer.getShort();
+        tempVramAddress = buffer.getShort();
+        fineXScroll = buffer.get();
+        nextTilePatternLowByte = buffer.get();
+        nextTilePatternHighByte = buffer.get();
+        nextTileAttribute = buffer.get();
+        nextTileNumber = Byte.toUnsignedInt(buffer.get());
+        backgroundPatternLowByteShiftRegister = buffer.getShort();
+        backgroundPatternHighByteShiftRegister = buffer.getShort();
+        backgroundAttributeLowByteShiftRegister = buffer.getShort();
+        backgroundAttributeHighByteShiftRegister = buffer.getShort();
+        buffer.get(spritePatternLowByteShiftRegisters)
+                .get(spritePatternHighByteShiftRegisters)
+                .get(spriteAttributes).get(spriteXPositions);
+        backgroundColorNumber = buffer.get();
+        spriteColorNumber = buffer.get();
+        final byte flags = buffer.get();
+        isFrameReady = (flags & 1) != 0;
+        firstByteWritten = (flags & 2) != 0;
+        isSpriteZeroLoadedToSecondaryOam = (flags & 4) != 0;
+        isSpriteZeroInScanline = (flags & 8) != 0;
+        renderingSpriteZero = (flags & 16) != 0;
+        spriteHasPriorityOverBackground = (flags & 32) != 0;
+    }
+
     /* After the color values for the background and/or the foreground have been
      * obtained, their priority is resolved according to the rules explained here:
      * https://www.nesdev.org/wiki/PPU_sprite_priority
      *
-     * Once the priority is resolved, a grayscale mask and/or tinting may be
-     * applied, depending on the corresponding control bits of PPUMASK.
+     * Once the priority is resolved, a grayscale mask may be applied depending
+     * on the corresponding control bit of PPUMASK. Tinting (color emphasis) is
+     * only recorded once per scanline, and applied when converting to RGB.
      */
-    private void renderPixel(Integer backgroundColorCode, Integer spriteColorCode,
-            BufferedImage img) {
+    private void renderPixel(Integer backgroundColorCode, Integer spriteColorCode) {
         int finalColorCode = Byte.toUnsignedInt(readByteFromPaletteMemory(0, true));
         if (backgroundColorCode != null)
             finalColorCode = backgroundColorCode;
@@ -268,9 +343,10 @@ public class PPU extends MemoryMapped {
                     spriteColorNumber != 0 && backgroundColorNumber != 0)
                 regPPUSTATUS.spriteZeroHit = true;
         }
-        int colorEmphasisOffset = regPPUMASK.emphasisBits * NUM_COLORS;
-        img.setRGB(column - 1, scanline, SYSTEM_PALETTE[colorEmphasisOffset +
-                finalColorCode % NUM_COLORS]);
+        if (column == 1)
+            scanlineEmphasis[scanline] = (byte)regPPUMASK.emphasisBits;
+        frameBuffer[scanline * SCREEN_WIDTH + column - 1] =
+                (byte)(finalColorCode % Palette.NUM_COLORS);
     }
 
     private void shiftBackgroundShiftRegisters() {
@@ -0,0 +1,64 @@
+package nesemu;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/* The PPU does not output RGB values: each pixel is one of 64 color indices
+ * (https://www.nesdev.org/wiki/PPU_palettes), further altered by the three
+ * color emphasis bits of PPUMASK. The conversion to RGB is therefore deferred
+ * to whoever actually needs to display (or record) the frames, using the
+ * lookup table in this class: for each of the 8 combinations of emphasis bits,
+ * there are 64 ARGB colors.
+ */
+
+public final class Palette {
+    public final static int NUM_COLORS = 64;
+
+    // The palette file was produced using Bisqwit's tool at
+    // https://bisqwit.iki.fi/utils/nespalette.php
+    private final static int[] SYSTEM_PALETTE =
+            readPaletteFromPalFile("/resources/ntscpalette.pal");
+
+    private Palette() {
+
+    }
+
+    private static int[] readPaletteFromPalFile(String fileName) {
+        DataInputStream stream = new DataInputStream(
+                Palette.class.getResourceAsStream(fileName));
+        final int[] colors = new int[NUM_COLORS * 8];
+        try {
+            for (int i = 0; i < colors.length; i++) {
+                byte rgb[] = stream.readNBytes(3);
+                colors[i] = 0xFF000000 | (Byte.toUnsignedInt(rgb[0]) << 16) |
+                        (Byte.toUnsignedInt(rgb[1]) << 8) |
+                        Byte.toUnsignedInt(rgb[2]);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Palette.class.getName())
+                    .log(Level.SEVERE, null, ex);
+        }
+        return colors;
+    }
+
+    /* Converts a whole frame of color indices (as produced by the PPU) to ARGB.
+     * The emphasis bits are given per scanline, so each row of the frame is
+     * looked up in its own 64-color slice of the table.
+     */
+    public static void toARGB(byte[] pixels, byte[] scanlineEmphasis, int[] argb) {
+        toARGB(pixels, scanlineEmphasis, argb, 0, scanlineEmphasis.length);
+    }
+
+    // Same as above, but only for rows [firstRow, lastRow) of the frame.
+    public static void toARGB(byte[] pixels, byte[] scanlineEmphasis, int[] argb,
+            int firstRow, int lastRow) {
+        final int width = pixels.length / scanlineEmphasis.length;
+        for (int y = firstRow; y < lastRow; y++) {
+            final int offset = scanlineEmphasis[y] * NUM_COLORS;
+            for (int i = y * width; i < (y + 1) * width; i++)
+                argb[i] = SYSTEM_PALETTE[offset + (pixels[i] & 0x3F)];
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package nesemu;
 
+import java.nio.ByteBuffer;
+
 public class RAM extends MemoryMapped {
     final byte ram[];
 
@@ -21,4 +23,14 @@ public class RAM extends MemoryMapped {
     public void writeByteToDevice(short address, byte value) {
         ram[address & 0x7FF] = value;
     }
+
+    @Override
+    void writeState(ByteBuffer buffer) {
+        buffer.put(ram);
+    }
+
+    @Override
+    void readState(ByteBuffer buffer) {
+        buffer.get(ram);
+    }
 }
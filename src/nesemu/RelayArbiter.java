@@ -0,0 +1,190 @@
+package nesemu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/* The authoritative NES of a relay room (see RelayServer): it follows the
+ * session from the messages the players send, loading each sync the server
+ * (player 1) sends and running it with the inputs of both players, the same
+ * way as NetplaySession. At the same frames as the players, it hashes its own
+ * state (see StateHash) and compares the hashes with theirs, so that when the
+ * players desync, it can tell which one has diverged from the inputs they
+ * agreed on (or whether both have).
+ *
+ * As in NetplaySession, after a sync at frame F resuming at frame R, the
+ * server's inputs are taken again from F on, and the client's are empty until
+ * R; the client's inputs are ignored until its READY message. Everything is
+ * called from the room's arbiter thread, in the order the relay got it, and
+ * never with the room's lock held.
+ */
+
+final class RelayArbiter {
+    private static final int HISTORY_SIZE = 1024;
+    private static final int HISTORY_MASK = HISTORY_SIZE - 1;
+    private static final int HASH_HISTORY_SIZE = 8;
+    private static final int HASH_HISTORY_MASK = HASH_HISTORY_SIZE - 1;
+    private static final int HASH_COUNT = NES.STATE_COMPONENT_NAMES.length;
+
+    private final String roomCode;
+    private final NetplaySync.Assembler syncAssembler;
+
+    // Inputs of both players, and the last frame of each known.
+    private final byte inputs[];
+    private final int lastInputFrames[];
+    private boolean isClientReady;
+    private int syncId;
+    private int syncFrame;
+    private boolean isROMWanted;
+
+    private NES nes;
+    private int frame;
+    private StateHash stateHash;
+    private int nextHashFrame;
+    // Own hashes, then those of each player, by hashed frame number /
+    // FRAMES_PER_HASH.
+    private final int hashFrames[][];
+    private final long hashes[][];
+    private final int desyncCounts[];
+
+    RelayArbiter(String roomCode) {
+        this.roomCode = roomCode;
+        syncAssembler = new NetplaySync.Assembler(null);
+        inputs = new byte[2 * HISTORY_SIZE];
+        lastInputFrames = new int[] {-1, -1};
+        hashFrames = new int[3][HASH_HISTORY_SIZE];
+        hashes = new long[3][HASH_HISTORY_SIZE * HASH_COUNT];
+        desyncCounts = new int[2];
+    }
+
+    int getSyncId() {
+        return syncId;
+    }
+
+    // Number of times the player (1 or 2) has been found to diverge.
+    int getDesyncCount(int player) {
+        return desyncCounts[player - 1];
+    }
+
+    /* Whether the ROMs of the current sync must be requested from the
+     * server, as the relay doesn't have them. Only true once per sync.
+     */
+    boolean takeROMRequest() {
+        final boolean wanted = isROMWanted;
+        isROMWanted = false;
+        return wanted;
+    }
+
+    void inputReceived(int player, int inputFrame, byte buttons) {
+        if (player == 2 && !isClientReady)
+            return;
+        inputs[2 * (inputFrame & HISTORY_MASK) + player - 1] = buttons;
+        lastInputFrames[player - 1] = inputFrame;
+        runFrames();
+    }
+
+    void messageReceived(int player, byte type, int messageFrame, ByteBuffer payload) {
+        try {
+            if (player == 1 && type == NetplaySession.SYNC_MESSAGE) {
+                nes = null;
+                isClientReady = false;
+                syncFrame = messageFrame;
+                lastInputFrames[0] = messageFrame - 1;
+                isROMWanted = !syncAssembler.start(messageFrame, payload);
+                syncId = syncAssembler.getSyncId();
+                for (int[] frames : hashFrames)
+                    Arrays.fill(frames, -1);
+                nextHashFrame = (messageFrame / NetplaySession.FRAMES_PER_HASH + 1) *
+                        NetplaySession.FRAMES_PER_HASH;
+            } else if (player == 1 && type == NetplaySession.SYNC_DATA_MESSAGE) {
+                final NetplaySync.Snapshot snapshot = syncAssembler.add(payload);
+                if (snapshot != null)
+                    load(snapshot);
+            } else if (player == 2 && type == NetplaySession.READY_MESSAGE &&
+                    NetplaySync.readSyncId(payload) == syncId) {
+                // The message's frame is the resume frame.
+                for (int f = syncFrame; f < messageFrame; f++)
+                    inputs[2 * (f & HISTORY_MASK) + 1] = 0;
+                lastInputFrames[1] = messageFrame - 1;
+                isClientReady = true;
+            } else if (type == NetplaySession.HASH_MESSAGE &&
+                    payload.getInt() == syncId) {
+                final int index = getHashIndex(messageFrame);
+                hashFrames[player][index] = messageFrame;
+                payload.asLongBuffer().get(hashes[player], index * HASH_COUNT, HASH_COUNT);
+                compareHashes(player, messageFrame);
+            }
+        } catch (IOException | UnsupportedMapperException | RuntimeException ex) {
+            Logger.getLogger(RelayArbiter.class.getName()).log(Level.WARNING,
+                    "Room " + roomCode + ": can't follow the sync", ex);
+            nes = null;
+        }
+        runFrames();
+    }
+
+    private void load(NetplaySync.Snapshot snapshot) {
+        nes = new NES(snapshot.cartridge);
+        nes.readState(ByteBuffer.wrap(snapshot.state));
+        nes.setFrameSink(FrameSink.DISCARD);
+        frame = snapshot.syncFrame;
+        if (stateHash == null || !stateHash.fits(nes))
+            stateHash = new StateHash(nes);
+    }
+
+    // Runs every frame whose inputs are known.
+    private void runFrames() {
+        if (nes == null)
+            return;
+        final int lastFrame = Math.min(lastInputFrames[0], lastInputFrames[1]);
+        if (Math.max(lastInputFrames[0], lastInputFrames[1]) - frame >= HISTORY_SIZE) {
+            Logger.getLogger(RelayArbiter.class.getName()).log(Level.WARNING,
+                    "Room {0}: too far behind the players until the next sync", roomCode);
+            nes = null;
+            return;
+        }
+        for (; frame <= lastFrame; frame++) {
+            if (frame == nextHashFrame)
+                hashFrame();
+            final int index = 2 * (frame & HISTORY_MASK);
+            nes.controller.setButtonStates(inputs[index], inputs[index + 1]);
+            nes.runUntilFrameReady();
+        }
+    }
+
+    private static int getHashIndex(int hashedFrame) {
+        return (hashedFrame / NetplaySession.FRAMES_PER_HASH) & HASH_HISTORY_MASK;
+    }
+
+    private void hashFrame() {
+        stateHash.compute(nes);
+        final int index = getHashIndex(frame);
+        hashFrames[0][index] = frame;
+        for (int i = 0; i < HASH_COUNT; i++)
+            hashes[0][index * HASH_COUNT + i] = stateHash.get(i);
+        nextHashFrame += NetplaySession.FRAMES_PER_HASH;
+        compareHashes(1, frame);
+        compareHashes(2, frame);
+    }
+
+    // Called when either hash of a frame is known; does nothing until both
+    // are.
+    private void compareHashes(int player, int hashedFrame) {
+        final int index = getHashIndex(hashedFrame);
+        if (hashFrames[0][index] != hashedFrame || hashFrames[player][index] != hashedFrame)
+            return;
+        hashFrames[player][index] = -1;
+        final int offset = index * HASH_COUNT;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            if (hashes[0][offset + i] != hashes[player][offset + i]) {
+                desyncCounts[player - 1]++;
+                Logger.getLogger(RelayArbiter.class.getName()).log(Level.WARNING,
+                        "Room {0}: player {1} has diverged at frame {2}, first in {3}",
+                        new Object[] {roomCode, player, hashedFrame,
+                            NES.STATE_COMPONENT_NAMES[i]});
+                return;
+            }
+        }
+    }
+}
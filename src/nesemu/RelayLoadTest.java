@@ -0,0 +1,258 @@
+package nesemu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Load test of a RelayServer with stand-in players, two per room, which send
+ * an input every frame (at 60 frames per second) and a PING message every
+ * second, as NetplaySession does. Each input is a function of the room, the
+ * player and the frame, so the players can check that they receive every
+ * input of the other one, in order, with the right value. The PING messages
+ * carry the time they were sent, from which the time they took to be relayed
+ * is measured.
+ *
+ * Player 2 of each room drops its connection now and then (at the given
+ * rate), and joins again, sending again the inputs the relay hadn't received.
+ */
+
+final class RelayLoadTest {
+    private static final long NANOS_PER_FRAME = 1000000000L / 60;
+    private static final int FRAMES_PER_PING = 60;
+    // Latencies by millisecond, the last bucket holding the rest.
+    private static final int LATENCY_BUCKETS = 1000;
+
+    private final String hostname;
+    private final int portNumber;
+    private final int roomCount;
+    private final double reconnectsPerFrame;
+    private final AtomicInteger errors;
+    private final AtomicInteger reconnects;
+    private final AtomicInteger unfinishedPlayers;
+    private final AtomicLongArray latencies;
+    private volatile boolean isStopping;
+
+    RelayLoadTest(String hostname, int portNumber, int roomCount,
+            double reconnectsPerMinute) {
+        this.hostname = hostname;
+        this.portNumber = portNumber;
+        this.roomCount = roomCount;
+        reconnectsPerFrame = reconnectsPerMinute / (60 * 60);
+        errors = new AtomicInteger();
+        reconnects = new AtomicInteger();
+        unfinishedPlayers = new AtomicInteger();
+        latencies = new AtomicLongArray(LATENCY_BUCKETS);
+    }
+
+    private static byte getInput(int room, int player, int frame) {
+        return (byte)(frame * 31 + room * 7 + player);
+    }
+
+    /* Runs the players for the given time, then prints a summary. Returns
+     * whether every input was received as sent.
+     */
+    boolean run(int seconds, RelayServer relay) throws InterruptedException {
+        final ExecutorService executor = RelayServer.newConnectionExecutor();
+        final List<Player> players = new ArrayList<>();
+        for (int room = 0; room < roomCount; room++)
+            for (int slot = 1; slot <= 2; slot++)
+                players.add(new Player(room, slot));
+        final long startTime = System.nanoTime();
+        for (Player player : players) {
+            executor.execute(player::receive);
+            executor.execute(player::send);
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        isStopping = true;
+        // Time for the last inputs to get through.
+        Thread.sleep(2000);
+        final long elapsedNanos = System.nanoTime() - startTime;
+        final int peakThreads = Thread.activeCount();
+        final Runtime runtime = Runtime.getRuntime();
+        long frames = 0;
+        for (int i = 0; i < players.size(); i++) {
+            final Player player = players.get(i);
+            final Player peer = players.get(i ^ 1);
+            if (player.lastReceivedFrame != peer.lastSentFrame) {
+                unfinishedPlayers.incrementAndGet();
+                errors.incrementAndGet();
+            }
+            frames += player.lastReceivedFrame + 1;
+            player.close();
+        }
+        executor.shutdownNow();
+        System.out.printf("Rooms: %d, players: %d, seconds: %.1f%n", roomCount,
+                players.size(), elapsedNanos / 1e9);
+        System.out.printf("Inputs received: %d (%.0f per second), messages relayed: %d%n",
+                frames, frames * 1e9 / elapsedNanos, relay.getRelayedMessageCount());
+        System.out.printf("Reconnects: %d, errors: %d (players behind at the end: %d)%n",
+                reconnects.get(), errors.get(), unfinishedPlayers.get());
+        System.out.printf("PING relay time: median %s, 99th percentile %s, max %s%n",
+                getLatencyPercentile(0.5), getLatencyPercentile(0.99),
+                getLatencyPercentile(1));
+        System.out.printf("Platform threads: %d, heap used: %d MB%n", peakThreads,
+                (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+        return errors.get() == 0;
+    }
+
+    private String getLatencyPercentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++)
+            total += latencies.get(i);
+        long count = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            count += latencies.get(i);
+            if (total > 0 && count >= fraction * total)
+                return i == LATENCY_BUCKETS - 1 ? ">" + i + " ms" : "<" + (i + 1) + " ms";
+        }
+        return "none";
+    }
+
+    private final class Player {
+        final int room;
+        final int slot;
+        // The connection's stream, handed to the receiving thread.
+        final BlockingQueue<DataInputStream> connections;
+        // Released by the receiving thread once the connection is closed.
+        final Semaphore disconnected;
+        volatile Socket socket;
+        volatile int lastReceivedFrame;
+        volatile int lastSentFrame;
+        final byte sentInputs[];
+
+        Player(int room, int slot) {
+            this.room = room;
+            this.slot = slot;
+            connections = new LinkedBlockingQueue<>();
+            disconnected = new Semaphore(0);
+            lastReceivedFrame = -1;
+            lastSentFrame = -1;
+            sentInputs = new byte[1];
+        }
+
+        private DataOutputStream connect() throws IOException {
+            final Socket newSocket = new Socket(hostname, portNumber);
+            newSocket.setTcpNoDelay(true);
+            final RelayServer.Ticket ticket = RelayServer.join(newSocket,
+                    "load-" + room, slot, lastReceivedFrame);
+            if (ticket.slot != slot)
+                throw new IOException("Joined in the wrong slot");
+            socket = newSocket;
+            connections.add(new DataInputStream(
+                    new BufferedInputStream(newSocket.getInputStream())));
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(newSocket.getOutputStream()));
+            // Inputs lost with the previous connection.
+            for (int frame = ticket.lastSentFrame + 1; frame <= lastSentFrame; frame++)
+                sendInput(out, frame);
+            return out;
+        }
+
+        private void sendInput(DataOutputStream out, int frame) throws IOException {
+            sentInputs[0] = getInput(room, slot, frame);
+            out.writeByte(TCPNetplayTransport.INPUTS_MESSAGE);
+            out.writeInt(frame);
+            out.writeByte(1);
+            out.write(sentInputs);
+        }
+
+        void send() {
+            try {
+                DataOutputStream out = connect();
+                long nextFrameTime = System.nanoTime();
+                for (int frame = 0; !isStopping; frame++) {
+                    if (slot == 2 && frame > 0 &&
+                            ThreadLocalRandom.current().nextDouble() < reconnectsPerFrame) {
+                        socket.close();
+                        disconnected.acquire();
+                        reconnects.incrementAndGet();
+                        out = connect();
+                    }
+                    sendInput(out, frame);
+                    lastSentFrame = frame;
+                    if (frame % FRAMES_PER_PING == 0) {
+                        out.writeByte(NetplaySession.PING_MESSAGE);
+                        out.writeInt(frame);
+                        out.writeInt(8);
+                        out.writeLong(System.nanoTime());
+                    }
+                    out.flush();
+                    nextFrameTime += NANOS_PER_FRAME;
+                    final long sleepNanos = nextFrameTime - System.nanoTime();
+                    if (sleepNanos > 0)
+                        TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+            } catch (IOException ex) {
+                if (!isStopping)
+                    errors.incrementAndGet();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void receive() {
+            try {
+                while (true) {
+                    final DataInputStream in = connections.take();
+                    try {
+                        receive(in);
+                    } catch (IOException ex) {
+                        disconnected.release();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void receive(DataInputStream in) throws IOException {
+            final byte inputs[] = new byte[TCPNetplayTransport.MAX_INPUTS_PER_MESSAGE];
+            final int peer = 3 - slot;
+            while (true) {
+                final byte type = in.readByte();
+                final int frame = in.readInt();
+                if (type == TCPNetplayTransport.INPUTS_MESSAGE) {
+                    final int count = in.readUnsignedByte();
+                    in.readFully(inputs, 0, count);
+                    if (frame != lastReceivedFrame + 1)
+                        errors.incrementAndGet();
+                    for (int i = 0; i < count; i++)
+                        if (inputs[i] != getInput(room, peer, frame + i))
+                            errors.incrementAndGet();
+                    lastReceivedFrame = Math.max(lastReceivedFrame, frame + count - 1);
+                } else {
+                    final byte payload[] = new byte[in.readInt()];
+                    in.readFully(payload);
+                    if (type == NetplaySession.PING_MESSAGE) {
+                        final long sentTime = ByteBuffer.wrap(payload).getLong();
+                        final long millis = (System.nanoTime() - sentTime) / 1000000;
+                        latencies.incrementAndGet((int)Math.min(millis, LATENCY_BUCKETS - 1));
+                    }
+                }
+            }
+        }
+
+        void close() {
+            try {
+                if (socket != null)
+                    socket.close();
+            } catch (IOException ex) {
+
+            }
+        }
+    }
+}
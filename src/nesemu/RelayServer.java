@@ -0,0 +1,629 @@
+package nesemu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/* A headless server that relays netplay sessions between players who can't
+ * (or would rather not) connect to each other directly, any number of them at
+ * once. Players meet in rooms, identified by a code they agree on: each
+ * connects to the relay over TCP, sends a JOIN message with the code, and is
+ * given a slot, 1 (the netplay server) or 2 (the client). From then on, every
+ * message (in TCPNetplayTransport's format) is passed on to the other player
+ * of the room as is, so NetplaySession works the same as over a direct
+ * connection; messages sent before the other player joins are kept until
+ * then.
+ *
+ * The inputs of the last HISTORY_SIZE frames of each player are kept, so a
+ * player whose connection drops can join again (asking for its slot, and
+ * saying which was the last frame it received from the other player): it's
+ * sent the inputs it missed, and then the messages sent while it was away.
+ * The reply to JOIN tells it the last of its own frames the relay got.
+ *
+ * Optionally (--authoritative), each room also runs its own NES with the
+ * inputs of both players (see RelayArbiter), and checks the state hashes they
+ * send against its own, to tell which player has desynced. The arbiter runs on
+ * a thread of its own, fed through a queue, so relaying never waits for it.
+ *
+ * Every connection is served by two threads of its own, blocking on its
+ * socket: one reads the player's messages and passes them on, and the other
+ * writes those queued for the player, so that no socket is ever written with
+ * a room's lock held. A player who stops reading is dropped once
+ * MAX_QUEUED_BYTES are waiting for it, as if it had disconnected. Threads are
+ * virtual when the JVM has them (Java 21 and later), so that thousands of
+ * rooms fit in one JVM, or otherwise come from a cached pool. Locks are
+ * ReentrantLocks rather than monitors, so virtual threads don't pin their
+ * carrier while waiting for them. The relay may be load tested with stand-in
+ * players (see RelayLoadTest).
+ *
+ * Usage: RelayServer [--port N] [--authoritative]
+ *                    [--load-test ROOMS SECONDS [RECONNECTS_PER_MINUTE]]
+ */
+
+public class RelayServer {
+    public static final int DEFAULT_PORT = 6510;
+
+    static final byte JOIN_MESSAGE = 10;
+    static final byte JOINED_MESSAGE = 11;
+
+    private static final int HISTORY_SIZE = 1024;
+    private static final int HISTORY_MASK = HISTORY_SIZE - 1;
+    // Bytes of messages kept for a player who hasn't joined yet (or is away).
+    private static final int MAX_PENDING_BYTES = 4 << 20;
+    // Bytes of messages waiting to be written to a connection; room for
+    // everything kept while the player was away, and then some.
+    private static final int MAX_QUEUED_BYTES = 2 * MAX_PENDING_BYTES;
+    private static final int MAX_MESSAGE_LENGTH = 1 << 20;
+    private static final int MAX_ROOM_CODE_LENGTH = 64;
+
+    // The slot assigned by the relay when joining a room.
+    public static final class Ticket {
+        public final int slot;
+        // Last frame of the joining player's inputs received by the relay.
+        public final int lastSentFrame;
+
+        private Ticket(int slot, int lastSentFrame) {
+            this.slot = slot;
+            this.lastSentFrame = lastSentFrame;
+        }
+    }
+
+    // Queued to stop a room's arbiter once the room is closed.
+    private static final Runnable STOP_ARBITER = () -> { };
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final boolean isAuthoritative;
+    private final Map<String, Room> rooms;
+    private final AtomicLong relayedMessages;
+
+    public RelayServer(int portNumber, boolean isAuthoritative) throws IOException {
+        serverSocket = new ServerSocket(portNumber, 1024);
+        executor = newConnectionExecutor();
+        this.isAuthoritative = isAuthoritative;
+        rooms = new ConcurrentHashMap<>();
+        relayedMessages = new AtomicLong();
+    }
+
+    /* One virtual thread per task where available. Looked up by reflection,
+     * since the project targets Java 8.
+     */
+    static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService)Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool(runnable -> {
+                final Thread thread = new Thread(runnable, "Relay connection");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    public long getRelayedMessageCount() {
+        return relayedMessages.get();
+    }
+
+    // Accepts connections in the background.
+    public void start() {
+        executor.execute(this::run);
+    }
+
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+
+        }
+        executor.shutdownNow();
+    }
+
+    // Accepts connections until closed.
+    public void run() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                executor.execute(() -> handleConnection(socket));
+            }
+        } catch (IOException ex) {
+            // Closed
+        }
+    }
+
+    /* Client side: joins a room on a relay, in the given slot (or in any free
+     * one, if 0), saying which was the last frame received from the other
+     * player (-1 if none). Must be done before anything else is sent or
+     * received on the socket. Throws IOException if the room has no free
+     * slot.
+     */
+    public static Ticket join(Socket socket, String roomCode, int slot,
+            int lastReceivedFrame) throws IOException {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream payloadOut = new DataOutputStream(payload);
+        payloadOut.writeByte(slot);
+        payloadOut.writeUTF(roomCode);
+        final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeByte(JOIN_MESSAGE);
+        out.writeInt(lastReceivedFrame);
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+        out.flush();
+        // Unbuffered, so that nothing after the reply is consumed.
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        if (in.readByte() != JOINED_MESSAGE)
+            throw new IOException("Unexpected reply from the relay");
+        final int lastSentFrame = in.readInt();
+        if (in.readInt() != 1)
+            throw new IOException("Unexpected reply from the relay");
+        final int assignedSlot = in.readByte();
+        if (assignedSlot == 0)
+            throw new IOException("The room is full");
+        return new Ticket(assignedSlot, lastSentFrame);
+    }
+
+    private void handleConnection(Socket socket) {
+        Room room = null;
+        Slot slot = null;
+        Connection connection = null;
+        try {
+            socket.setTcpNoDelay(true);
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            connection = new Connection(socket);
+            if (in.readByte() != JOIN_MESSAGE)
+                throw new IOException("Expected a join message");
+            final int lastReceivedFrame = in.readInt();
+            final int length = in.readInt();
+            if (length < 3 || length > 3 + 3 * MAX_ROOM_CODE_LENGTH)
+                throw new IOException("Invalid join message");
+            final int requestedSlot = in.readByte();
+            final String code = in.readUTF();
+            while (true) {
+                room = rooms.computeIfAbsent(code, Room::new);
+                slot = room.join(connection, requestedSlot, lastReceivedFrame);
+                // The room may have been closed in the meantime.
+                if (slot != null || !room.isClosed)
+                    break;
+            }
+            if (slot == null) {
+                socket.getOutputStream().write(
+                        encodeMessage(JOINED_MESSAGE, -1, new byte[] {0}, 1));
+                return;
+            }
+            executor.execute(connection::writeQueuedMessages);
+            relayMessages(in, room, slot, connection);
+        } catch (IOException ex) {
+            // Disconnected
+        } finally {
+            if (slot != null)
+                room.leave(slot, connection);
+            if (connection != null)
+                connection.close();
+            else {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+
+                }
+            }
+        }
+    }
+
+    private void relayMessages(DataInputStream in, Room room, Slot slot,
+            Connection connection) throws IOException {
+        byte buffer[] = new byte[256];
+        while (true) {
+            final byte type = in.readByte();
+            final int frame = in.readInt();
+            if (type == TCPNetplayTransport.INPUTS_MESSAGE) {
+                final int count = in.readUnsignedByte();
+                in.readFully(buffer, 0, count);
+                room.relayInputs(slot, connection, frame, buffer, count);
+            } else {
+                final int length = in.readInt();
+                if (length < 0 || length > MAX_MESSAGE_LENGTH)
+                    throw new IOException("Invalid message length");
+                if (buffer.length < length)
+                    buffer = new byte[length];
+                in.readFully(buffer, 0, length);
+                room.relayMessage(slot, connection, type, frame, buffer, length);
+            }
+            relayedMessages.incrementAndGet();
+        }
+    }
+
+    // A message in TCPNetplayTransport's format.
+    private static byte[] encodeMessage(byte type, int frame, byte[] payload,
+            int length) {
+        return ByteBuffer.allocate(9 + length).put(type).putInt(frame)
+                .putInt(length).put(payload, 0, length).array();
+    }
+
+    private static byte[] encodeInputs(int firstFrame, byte[] inputs, int offset,
+            int count) {
+        return ByteBuffer.allocate(6 + count).put(TCPNetplayTransport.INPUTS_MESSAGE)
+                .putInt(firstFrame).put((byte)count).put(inputs, offset, count).array();
+    }
+
+    private static final class Connection {
+        // Queued to wake up the writing thread once the connection is closed.
+        private static final byte CLOSED[] = new byte[0];
+
+        final Socket socket;
+        private final DataOutputStream out;
+        private final BlockingQueue<byte[]> outgoing;
+        private final AtomicInteger queuedBytes;
+        private volatile boolean isClosed;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            outgoing = new LinkedBlockingQueue<>();
+            queuedBytes = new AtomicInteger();
+        }
+
+        /* Queues an encoded message, without waiting. Returns false if the
+         * connection is closed, or the player is too far behind reading, in
+         * which case it must be dropped.
+         */
+        boolean send(byte[] message) {
+            if (isClosed || queuedBytes.addAndGet(message.length) > MAX_QUEUED_BYTES)
+                return false;
+            outgoing.add(message);
+            return true;
+        }
+
+        // Runs on the connection's writing thread until it's closed.
+        void writeQueuedMessages() {
+            try {
+                while (true) {
+                    final byte message[] = outgoing.take();
+                    if (message == CLOSED)
+                        break;
+                    out.write(message);
+                    queuedBytes.addAndGet(-message.length);
+                    if (outgoing.isEmpty())
+                        out.flush();
+                }
+            } catch (IOException ex) {
+                // Disconnected
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            close();
+        }
+
+        // The reading thread then fails, and leaves the room.
+        void close() {
+            isClosed = true;
+            outgoing.add(CLOSED);
+            try {
+                socket.close();
+            } catch (IOException ex) {
+
+            }
+        }
+    }
+
+    private static final class Slot {
+        final int number;
+        Connection connection;
+        boolean hasJoined;
+        // The player's inputs, as received.
+        final byte inputs[];
+        int lastInputFrame;
+        // Last frame of the other player's inputs queued to the connection.
+        int lastDeliveredFrame;
+        // Messages (in TCPNetplayTransport's format) for when the player
+        // joins or comes back, and the last frame of inputs among them.
+        final Queue<byte[]> pending;
+        int pendingBytes;
+        int lastQueuedFrame;
+
+        Slot(int number) {
+            this.number = number;
+            inputs = new byte[HISTORY_SIZE];
+            lastInputFrame = -1;
+            lastDeliveredFrame = -1;
+            pending = new ArrayDeque<>();
+            lastQueuedFrame = -1;
+        }
+    }
+
+    // Everything is accessed with the lock held, except for the arbiter, which
+    // is only accessed from its own thread.
+    private final class Room {
+        final String code;
+        final ReentrantLock lock;
+        final Slot slots[];
+        final RelayArbiter arbiter;
+        // What the arbiter has to follow, in the order the relay got it.
+        final BlockingQueue<Runnable> arbiterTasks;
+        int romRequestSyncId;
+        boolean isClosed;
+
+        Room(String code) {
+            this.code = code;
+            lock = new ReentrantLock();
+            slots = new Slot[] { new Slot(1), new Slot(2) };
+            arbiter = isAuthoritative ? new RelayArbiter(code) : null;
+            arbiterTasks = isAuthoritative ? new LinkedBlockingQueue<>() : null;
+            if (isAuthoritative)
+                executor.execute(this::runArbiter);
+        }
+
+        private void runArbiter() {
+            try {
+                while (true) {
+                    final Runnable task = arbiterTasks.take();
+                    if (task == STOP_ARBITER)
+                        return;
+                    task.run();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void close() {
+            isClosed = true;
+            rooms.remove(code, this);
+            if (arbiterTasks != null)
+                arbiterTasks.add(STOP_ARBITER);
+        }
+
+        private Slot getPeer(Slot slot) {
+            return slots[2 - slot.number];
+        }
+
+        /* A player asking for a slot by number takes it over, even if it's
+         * still connected (i. e. the relay hasn't noticed yet that the player
+         * has lost the connection). Returns null if no slot is free. The
+         * connection's queue has room for everything sent here.
+         */
+        Slot join(Connection connection, int requestedSlot, int lastReceivedFrame) {
+            lock.lock();
+            try {
+                if (isClosed)
+                    return null;
+                Slot slot = null;
+                if (requestedSlot == 1 || requestedSlot == 2)
+                    slot = slots[requestedSlot - 1];
+                else
+                    for (Slot candidate : slots)
+                        if (slot == null && !candidate.hasJoined)
+                            slot = candidate;
+                if (slot == null)
+                    return null;
+                if (slot.connection != null)
+                    dropConnection(slot);
+                connection.send(encodeMessage(JOINED_MESSAGE, slot.lastInputFrame,
+                        new byte[] {(byte)slot.number}, 1));
+                sendMissedInputs(connection, slot, lastReceivedFrame);
+                for (byte message[] : slot.pending)
+                    connection.send(message);
+                slot.lastDeliveredFrame = Math.max(slot.lastDeliveredFrame,
+                        slot.lastQueuedFrame);
+                slot.pending.clear();
+                slot.pendingBytes = 0;
+                slot.connection = connection;
+                slot.hasJoined = true;
+                return slot;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /* The inputs written to the previous connection after the last one
+         * the player received, which were lost with it. Those no longer kept
+         * are lost for good.
+         */
+        private void sendMissedInputs(Connection connection, Slot slot,
+                int lastReceivedFrame) {
+            final Slot peer = getPeer(slot);
+            int frame = Math.max(lastReceivedFrame + 1,
+                    peer.lastInputFrame - HISTORY_SIZE + 1);
+            final int lastFrame = slot.lastDeliveredFrame;
+            final byte batch[] = new byte[TCPNetplayTransport.MAX_INPUTS_PER_MESSAGE];
+            while (frame <= lastFrame) {
+                final int count = Math.min(lastFrame - frame + 1, batch.length);
+                for (int i = 0; i < count; i++)
+                    batch[i] = peer.inputs[(frame + i) & HISTORY_MASK];
+                connection.send(encodeInputs(frame, batch, 0, count));
+                frame += count;
+            }
+        }
+
+        void leave(Slot slot, Connection connection) {
+            lock.lock();
+            try {
+                // It may have been taken over already.
+                if (slot.connection == connection)
+                    slot.connection = null;
+                if (slot.connection == null && getPeer(slot).connection == null)
+                    close();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void relayInputs(Slot from, Connection connection, int firstFrame,
+                byte[] buttons, int count) throws IOException {
+            lock.lock();
+            try {
+                checkConnection(from, connection);
+                for (int i = 0; i < count; i++)
+                    from.inputs[(firstFrame + i) & HISTORY_MASK] = buttons[i];
+                from.lastInputFrame = firstFrame + count - 1;
+                final Slot to = getPeer(from);
+                if (deliver(to, encodeInputs(firstFrame, buttons, 0, count)))
+                    to.lastDeliveredFrame = from.lastInputFrame;
+                else
+                    to.lastQueuedFrame = from.lastInputFrame;
+                if (arbiter != null) {
+                    final byte inputs[] = Arrays.copyOf(buttons, count);
+                    arbiterTasks.add(() -> {
+                        for (int i = 0; i < count; i++)
+                            arbiter.inputReceived(from.number, firstFrame + i, inputs[i]);
+                    });
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void relayMessage(Slot from, Connection connection, byte type, int frame,
+                byte[] payload, int length) throws IOException {
+            lock.lock();
+            try {
+                checkConnection(from, connection);
+                if (arbiter != null && type == NetplaySession.ROM_REQUEST_MESSAGE) {
+                    // The server sends the ROMs to both, so they're only
+                    // requested once per sync.
+                    final int syncId = NetplaySync.readSyncId(ByteBuffer.wrap(payload, 0, length));
+                    if (syncId == romRequestSyncId)
+                        return;
+                    romRequestSyncId = syncId;
+                }
+                deliver(getPeer(from), encodeMessage(type, frame, payload, length));
+                if (arbiter != null) {
+                    final ByteBuffer message = ByteBuffer.wrap(
+                            Arrays.copyOf(payload, length));
+                    arbiterTasks.add(() -> {
+                        arbiter.messageReceived(from.number, type, frame, message);
+                        if (arbiter.takeROMRequest())
+                            requestROM(from, frame, arbiter.getSyncId());
+                    });
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /* Queues the message to the player's connection, or keeps it for when
+         * the player comes back. Returns whether it was queued to the
+         * connection.
+         */
+        private boolean deliver(Slot to, byte[] message) throws IOException {
+            if (to.connection != null && to.connection.send(message))
+                return true;
+            if (to.connection != null)
+                dropConnection(to);
+            keepForLater(to, message);
+            return false;
+        }
+
+        // Whatever is still read from a connection taken over is dropped, as
+        // the player sends it again (from the frame given in the JOINED reply).
+        private void checkConnection(Slot slot, Connection connection)
+                throws IOException {
+            if (slot.connection != connection)
+                throw new IOException("The slot has been taken over");
+        }
+
+        // For the arbiter (on its thread), from the server (which sent the
+        // sync), unless the client has already asked for them.
+        private void requestROM(Slot server, int frame, int syncId) {
+            lock.lock();
+            try {
+                if (syncId == romRequestSyncId)
+                    return;
+                romRequestSyncId = syncId;
+                final byte request[] = ByteBuffer.allocate(4).putInt(syncId).array();
+                if (server.connection != null && !server.connection.send(encodeMessage(
+                        NetplaySession.ROM_REQUEST_MESSAGE, frame, request, request.length)))
+                    dropConnection(server);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // The player's thread finds out on its own and leaves.
+        private void dropConnection(Slot slot) {
+            slot.connection.close();
+            slot.connection = null;
+        }
+
+        private void keepForLater(Slot to, byte[] message) throws IOException {
+            if (to.pendingBytes + message.length > MAX_PENDING_BYTES) {
+                // The player can't catch up anymore; close the room.
+                close();
+                for (Slot slot : slots)
+                    if (slot.connection != null)
+                        dropConnection(slot);
+                throw new IOException("Too many messages for an absent player");
+            }
+            to.pending.add(message);
+            to.pendingBytes += message.length;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = DEFAULT_PORT;
+        boolean isAuthoritative = false;
+        int loadTestRooms = 0;
+        int loadTestSeconds = 0;
+        double reconnectsPerMinute = 0;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--authoritative":
+                    isAuthoritative = true;
+                    break;
+                case "--load-test":
+                    loadTestRooms = Integer.parseInt(args[++i]);
+                    loadTestSeconds = Integer.parseInt(args[++i]);
+                    if (i + 1 < args.length && !args[i + 1].startsWith("--"))
+                        reconnectsPerMinute = Double.parseDouble(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: RelayServer [--port N] [--authoritative] " +
+                            "[--load-test ROOMS SECONDS [RECONNECTS_PER_MINUTE]]");
+                    System.exit(1);
+            }
+        }
+        final RelayServer relay = new RelayServer(port, isAuthoritative);
+        Logger.getLogger(RelayServer.class.getName()).log(Level.INFO,
+                "Relaying netplay sessions on port {0,number,#}", relay.getPort());
+        if (loadTestRooms == 0) {
+            relay.run();
+        } else {
+            relay.start();
+            final boolean passed = new RelayLoadTest("localhost", relay.getPort(),
+                    loadTestRooms, reconnectsPerMinute).run(loadTestSeconds, relay);
+            relay.close();
+            System.exit(passed ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package nesemu;
+
+import java.util.Arrays;
+
+/* Keeps the state of the console in each of the last frames, so that the game
+ * can be played backwards one frame at a time.
+ *
+ * Consecutive snapshots are almost identical, so they are stored compressed in
+ * a circular arena of fixed size, oldest snapshots being evicted when it fills
+ * up. Every KEYFRAME_INTERVAL frames a keyframe is stored, and every other
+ * snapshot is stored as its difference (XOR) with the latest keyframe. Both
+ * are then run-length encoded: the XOR of two similar snapshots is mostly
+ * zeros, and so is a lone keyframe (RAMs are mostly zeros too). The encoding
+ * is a sequence of pairs of runs, each made up of:
+ *
+ *   - The length of a run of zeros (unchanged bytes), as a varint.
+ *   - The length of a run of literal bytes, as a varint, followed by them.
+ *
+ * No allocation is performed after construction, so pushing and popping
+ * snapshots can be done every frame.
+ */
+
+public class RewindBuffer {
+    private static final int KEYFRAME_INTERVAL = 60;
+    // 10 minutes of gameplay at 60 FPS.
+    private static final int MAX_ENTRIES = 60 * 60 * 10;
+
+    private final byte arena[];
+    private int writeOffset;
+
+    // Ring of stored snapshots, from the oldest (firstEntry) to the newest.
+    // The oldest one is always a keyframe.
+    private final int entryOffsets[];
+    private final int entryLengths[];
+    private final boolean entryIsKeyframe[];
+    private int firstEntry;
+    private int entryCount;
+
+    private final StateBuffer state;
+    // Decoded copy of the latest keyframe, which the deltas are relative to.
+    private final StateBuffer keyframe;
+    private int framesSinceKeyframe;
+    private final byte encodedState[];
+
+    public RewindBuffer(int budgetBytes, int stateSize) {
+        arena = new byte[budgetBytes];
+        entryOffsets = new int[MAX_ENTRIES];
+        entryLengths = new int[MAX_ENTRIES];
+        entryIsKeyframe = new boolean[MAX_ENTRIES];
+        state = new StateBuffer(stateSize);
+        keyframe = new StateBuffer(stateSize);
+        // In the worst case (alternating changed and unchanged bytes) each
+        // changed byte takes three bytes.
+        encodedState = new byte[stateSize * 2 + 16];
+    }
+
+    public void clear() {
+        entryCount = 0;
+        writeOffset = 0;
+        keyframe.clear();
+    }
+
+    // Number of frames that can be currently rewound.
+    public int size() {
+        return entryCount;
+    }
+
+    // Stores the current state of the NES as the newest snapshot.
+    public void push(NES nes) {
+        nes.saveState(state);
+        boolean isKeyframe = entryCount == 0 || framesSinceKeyframe >= KEYFRAME_INTERVAL ||
+                state.size() != keyframe.size();
+        int length = encode(state, isKeyframe ? null : keyframe);
+        int offset = allocate(length);
+        if (!isKeyframe && entryCount == 0) {
+            // The keyframe was evicted to make room for this snapshot.
+            isKeyframe = true;
+            length = encode(state, null);
+            offset = allocate(length);
+        }
+        System.arraycopy(encodedState, 0, arena, offset, length);
+        final int entry = (firstEntry + entryCount) % MAX_ENTRIES;
+        entryOffsets[entry] = offset;
+        entryLengths[entry] = length;
+        entryIsKeyframe[entry] = isKeyframe;
+        entryCount++;
+        if (isKeyframe) {
+            keyframe.copyFrom(state);
+            framesSinceKeyframe = 0;
+        }
+        framesSinceKeyframe++;
+    }
+
+    /* Restores the newest snapshot into the NES and removes it from the buffer.
+     * Returns false (leaving the NES untouched) if there are no snapshots left.
+     */
+    public boolean pop(NES nes) {
+        if (entryCount == 0)
+            return false;
+        final int entry = (firstEntry + entryCount - 1) % MAX_ENTRIES;
+        decode(entry, entryIsKeyframe[entry] ? null : keyframe, state);
+        entryCount--;
+        writeOffset = entryOffsets[entry];
+        if (entryIsKeyframe[entry])
+            restoreLatestKeyframe();
+        else
+            framesSinceKeyframe--;
+        nes.loadState(state);
+        return true;
+    }
+
+    private void restoreLatestKeyframe() {
+        keyframe.clear();
+        framesSinceKeyframe = 0;
+        for (int i = entryCount - 1; i >= 0; i--) {
+            final int entry = (firstEntry + i) % MAX_ENTRIES;
+            framesSinceKeyframe++;
+            if (entryIsKeyframe[entry]) {
+                decode(entry, null, keyframe);
+                return;
+            }
+        }
+    }
+
+    /* Returns the offset of a free region of the arena of the given length,
+     * evicting the oldest snapshots if needed. Regions are allocated one after
+     * the other, wrapping around to the start of the arena when the end is
+     * reached.
+     */
+    private int allocate(int length) {
+        if (length > arena.length)
+            throw new IllegalStateException("Rewind buffer too small for a single state");
+        if (entryCount == MAX_ENTRIES)
+            evictOldestKeyframe();
+        if (writeOffset + length > arena.length) {
+            // Snapshots past the current offset are older than those at the
+            // start of the arena, so they must be evicted first.
+            final int endOffset = writeOffset;
+            while (entryCount > 0 && entryOffsets[firstEntry] >= endOffset)
+                evictOldestKeyframe();
+            writeOffset = 0;
+        }
+        while (entryCount > 0 && entryOffsets[firstEntry] >= writeOffset &&
+                entryOffsets[firstEntry] < writeOffset + length)
+            evictOldestKeyframe();
+        final int offset = writeOffset;
+        writeOffset += length;
+        return offset;
+    }
+
+    // Evicts the oldest keyframe, along with the deltas relative to it.
+    private void evictOldestKeyframe() {
+        do {
+            firstEntry = (firstEntry + 1) % MAX_ENTRIES;
+            entryCount--;
+        } while (entryCount > 0 && !entryIsKeyframe[firstEntry]);
+        if (entryCount == 0)
+            keyframe.clear();
+    }
+
+    private int encode(StateBuffer current, StateBuffer reference) {
+        final byte bytes[] = current.array();
+        final byte referenceBytes[] = reference == null ? null : reference.array();
+        final int size = current.size();
+        int position = 0, length = 0;
+        while (position < size) {
+            final int zeroRunStart = position;
+            while (position < size && differenceAt(bytes, referenceBytes, position) == 0)
+                position++;
+            final int literalRunStart = position;
+            while (position < size && differenceAt(bytes, referenceBytes, position) != 0)
+                position++;
+            length = writeVarint(position - literalRunStart,
+                    writeVarint(literalRunStart - zeroRunStart, length));
+            for (int i = literalRunStart; i < position; i++)
+                encodedState[length++] = differenceAt(bytes, referenceBytes, i);
+        }
+        return length;
+    }
+
+    private static byte differenceAt(byte[] bytes, byte[] referenceBytes, int i) {
+        return referenceBytes == null ? bytes[i] : (byte)(bytes[i] ^ referenceBytes[i]);
+    }
+
+    private void decode(int entry, StateBuffer reference, StateBuffer out) {
+        final byte outBytes[] = out.array();
+        if (reference == null)
+            Arrays.fill(outBytes, (byte)0);
+        else
+            System.arraycopy(reference.array(), 0, outBytes, 0, reference.size());
+        int input = entryOffsets[entry], position = 0;
+        final int end = input + entryLengths[entry];
+        while (input < end) {
+            int zeroRun = 0, literalRun = 0, shift = 0;
+            byte b;
+            do {
+                b = arena[input++];
+                zeroRun |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            shift = 0;
+            do {
+                b = arena[input++];
+                literalRun |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            position += zeroRun;
+            for (int i = 0; i < literalRun; i++)
+                outBytes[position++] ^= arena[input++];
+        }
+        // The encoding always covers the whole snapshot, trailing zeros
+        // included, so its size is where decoding ends.
+        out.setSize(position);
+    }
+
+    private int writeVarint(int value, int offset) {
+        while (value >= 0x80) {
+            encodedState[offset++] = (byte)(value | 0x80);
+            value >>>= 7;
+        }
+        encodedState[offset++] = (byte)value;
+        return offset;
+    }
+}
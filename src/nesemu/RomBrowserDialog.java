@@ -0,0 +1,217 @@
+package nesemu;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.Font;
+import java.awt.Frame;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingWorker;
+import javax.swing.table.AbstractTableModel;
+
+/* Lists the ROMs in a RomLibrary, and lets the user add directories to it,
+ * rescan it and pick a ROM to load. Scans run in the background, so the
+ * dialog stays responsive (and the index is saved after each scan).
+ */
+
+public class RomBrowserDialog extends JDialog {
+    private static final Font FONT = new Font("Fira Code", 0, 13);
+
+    private final RomLibrary library;
+    private final Consumer<String> romLoader;
+    private final RomTableModel tableModel;
+    private final JTable table;
+    private final JLabel statusLabel;
+    private final JButton addDirectoryButton;
+    private final JButton rescanButton;
+    private final JButton loadButton;
+
+    public RomBrowserDialog(Frame owner, RomLibrary library,
+            Consumer<String> romLoader) {
+        super(owner, "ROM library", true);
+        this.library = library;
+        this.romLoader = romLoader;
+        tableModel = new RomTableModel();
+        table = new JTable(tableModel);
+        table.setFont(FONT);
+        table.setAutoCreateRowSorter(true);
+        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        table.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent evt) {
+                if (evt.getClickCount() == 2)
+                    loadSelectedROM();
+            }
+        });
+        statusLabel = new JLabel();
+        statusLabel.setFont(FONT);
+        addDirectoryButton = createButton("Add directory...");
+        addDirectoryButton.addActionListener(evt -> addDirectory());
+        rescanButton = createButton("Rescan");
+        rescanButton.addActionListener(evt -> scan());
+        loadButton = createButton("Load");
+        loadButton.addActionListener(evt -> loadSelectedROM());
+        final JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttonPanel.add(addDirectoryButton);
+        buttonPanel.add(rescanButton);
+        buttonPanel.add(loadButton);
+        final JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 5));
+        bottomPanel.add(statusLabel, BorderLayout.CENTER);
+        bottomPanel.add(buttonPanel, BorderLayout.EAST);
+        getContentPane().add(new JScrollPane(table), BorderLayout.CENTER);
+        getContentPane().add(bottomPanel, BorderLayout.SOUTH);
+        setSize(800, 500);
+        setLocationRelativeTo(owner);
+        showEntryCount();
+    }
+
+    private static JButton createButton(String text) {
+        final JButton button = new JButton(text);
+        button.setFont(FONT);
+        return button;
+    }
+
+    private void addDirectory() {
+        final JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+            return;
+        library.addRoot(fileChooser.getSelectedFile());
+        scan();
+    }
+
+    public final void scan() {
+        setButtonsEnabled(false);
+        statusLabel.setText("Scanning...");
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                library.scan();
+                library.save();
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    Logger.getLogger(RomBrowserDialog.class.getName())
+                            .log(Level.SEVERE, null, ex);
+                }
+                tableModel.update();
+                showEntryCount();
+                setButtonsEnabled(true);
+            }
+        }.execute();
+    }
+
+    private void setButtonsEnabled(boolean enabled) {
+        addDirectoryButton.setEnabled(enabled);
+        rescanButton.setEnabled(enabled);
+        loadButton.setEnabled(enabled);
+    }
+
+    private void showEntryCount() {
+        int supported = 0;
+        for (RomLibrary.Entry entry : tableModel.entries)
+            if (entry.isSupported())
+                supported++;
+        statusLabel.setText(tableModel.entries.size() + " ROMs (" + supported +
+                " supported)");
+    }
+
+    private void loadSelectedROM() {
+        final int row = table.getSelectedRow();
+        if (row < 0)
+            return;
+        final RomLibrary.Entry entry =
+                tableModel.entries.get(table.convertRowIndexToModel(row));
+        if (!entry.isSupported()) {
+            statusLabel.setText("Mapper " + entry.mapperNumber + " is not supported yet");
+            return;
+        }
+        dispose();
+        romLoader.accept(entry.path);
+    }
+
+    private class RomTableModel extends AbstractTableModel {
+        private final String columnNames[] = {
+            "Name", "Mapper", "Mirroring", "PRG-ROM", "CHR-ROM", "Battery",
+            "Supported", "CRC32"
+        };
+        private List<RomLibrary.Entry> entries = library.getEntries();
+
+        void update() {
+            entries = library.getEntries();
+            fireTableDataChanged();
+        }
+
+        @Override
+        public int getRowCount() {
+            return entries.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columnNames.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return columnNames[column];
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            switch (column) {
+                case 1:
+                    return Integer.class;
+                case 5:
+                case 6:
+                    return Boolean.class;
+            }
+            return String.class;
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            final RomLibrary.Entry entry = entries.get(row);
+            switch (column) {
+                case 0:
+                    return entry.getName();
+                case 1:
+                    return entry.mapperNumber;
+                case 2:
+                    return entry.mirroring.toString();
+                case 3:
+                    return (entry.prgROMSize / 1024) + " KB";
+                case 4:
+                    return entry.chrROMSize == 0 ? "RAM" :
+                            (entry.chrROMSize / 1024) + " KB";
+                case 5:
+                    return entry.hasBattery;
+                case 6:
+                    return entry.isSupported();
+                default:
+                    return String.format("%08X", entry.crc32);
+            }
+        }
+    }
+}
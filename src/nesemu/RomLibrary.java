@@ -0,0 +1,337 @@
+package nesemu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/* An index of the ROMs found under a set of directories, including those
+ * stored inside zip archives (whose paths have the form
+ * "archive.zip!/entry.nes"). For each ROM, the fields of its iNES header are
+ * kept along with the CRC32 and SHA-1 of its ROM contents (header and trainer
+ * excluded, so the SHA-1 is the same as Cartridge.romHash).
+ *
+ * Directories are scanned on a fork-join pool, one task per directory and
+ * zip archive. The index is stored in a compact binary file, and files whose
+ * modification time and size haven't changed since the last scan are not read
+ * again, so rescanning a large library is cheap.
+ */
+
+public class RomLibrary {
+    public static final String ARCHIVE_ENTRY_SEPARATOR = "!/";
+
+    private static final int INDEX_MAGIC_NUMBER = 0x4E4C4942;  // "NLIB"
+    private static final short INDEX_FORMAT_VERSION = 1;
+
+    public static final class Entry {
+        public final String path;
+        // Modification time and size of the file the ROM was read from (the
+        // archive, for ROMs inside zip archives).
+        public final long sourceLastModified;
+        public final long sourceSize;
+        public final int mapperNumber;
+        public final Cartridge.Mirroring mirroring;
+        public final int prgROMSize;
+        public final int chrROMSize;
+        public final boolean hasBattery;
+        public final int crc32;
+        public final byte sha1[];
+
+        private Entry(String path, long sourceLastModified, long sourceSize,
+                int mapperNumber, Cartridge.Mirroring mirroring, int prgROMSize,
+                int chrROMSize, boolean hasBattery, int crc32, byte[] sha1) {
+            this.path = path;
+            this.sourceLastModified = sourceLastModified;
+            this.sourceSize = sourceSize;
+            this.mapperNumber = mapperNumber;
+            this.mirroring = mirroring;
+            this.prgROMSize = prgROMSize;
+            this.chrROMSize = chrROMSize;
+            this.hasBattery = hasBattery;
+            this.crc32 = crc32;
+            this.sha1 = sha1;
+        }
+
+        public String getName() {
+            return Cartridge.getNameFromPath(path);
+        }
+
+        // Whether the emulator can run the ROM.
+        public boolean isSupported() {
+            return Cartridge.isMapperSupported(mapperNumber);
+        }
+
+        // The file the ROM was read from (the archive, for ROMs inside zip
+        // archives).
+        public String getSourcePath() {
+            final int separator = path.indexOf(ARCHIVE_ENTRY_SEPARATOR);
+            return separator < 0 ? path : path.substring(0, separator);
+        }
+    }
+
+    private final File indexFile;
+    private final List<File> roots;
+    private List<Entry> entries;
+
+    public RomLibrary(File indexFile) {
+        this.indexFile = indexFile;
+        roots = new ArrayList<>();
+        entries = new ArrayList<>();
+    }
+
+    // ~/.nesemu/library.idx
+    public static File getDefaultIndexFile() {
+        return new File(System.getProperty("user.home"),
+                ".nesemu" + File.separator + "library.idx");
+    }
+
+    public synchronized List<File> getRoots() {
+        return new ArrayList<>(roots);
+    }
+
+    public synchronized void addRoot(File root) {
+        if (!roots.contains(root.getAbsoluteFile()))
+            roots.add(root.getAbsoluteFile());
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    // Returns the entry whose ROM contents have the given SHA-1 hash (see
+    // Cartridge.romHash), or null if there is none.
+    public synchronized Entry findBySHA1(byte[] sha1) {
+        for (Entry entry : entries)
+            if (Arrays.equals(entry.sha1, sha1))
+                return entry;
+        return null;
+    }
+
+    /* Scans all roots, reusing the previous results for every file that
+     * hasn't changed, and replaces the entries with the result. Files that
+     * can't be read or are not valid iNES images are left out.
+     */
+    public void scan() {
+        final List<File> currentRoots;
+        final Map<String, List<Entry>> previousEntries = new HashMap<>();
+        synchronized (this) {
+            currentRoots = new ArrayList<>(roots);
+            for (Entry entry : entries)
+                previousEntries.computeIfAbsent(entry.getSourcePath(),
+                        path -> new ArrayList<>()).add(entry);
+        }
+        final ForkJoinPool pool = new ForkJoinPool();
+        final List<Entry> scannedEntries = new ArrayList<>();
+        try {
+            for (File root : currentRoots)
+                scannedEntries.addAll(pool.invoke(
+                        new ScanTask(root, previousEntries)));
+        } finally {
+            pool.shutdown();
+        }
+        scannedEntries.sort((a, b) -> a.getName().compareToIgnoreCase(b.getName()));
+        synchronized (this) {
+            entries = scannedEntries;
+        }
+    }
+
+    private static class ScanTask extends RecursiveTask<List<Entry>> {
+        private final File file;
+        private final Map<String, List<Entry>> previousEntries;
+
+        ScanTask(File file, Map<String, List<Entry>> previousEntries) {
+            this.file = file;
+            this.previousEntries = previousEntries;
+        }
+
+        @Override
+        protected List<Entry> compute() {
+            final List<Entry> result = new ArrayList<>();
+            if (file.isDirectory()) {
+                final File children[] = file.listFiles();
+                if (children == null)
+                    return result;
+                final List<ScanTask> subtasks = new ArrayList<>();
+                for (File child : children)
+                    if (child.isDirectory() || isArchive(child))
+                        subtasks.add(new ScanTask(child, previousEntries));
+                    else if (isROM(child.getName()))
+                        scanSource(child, result);
+                for (ScanTask subtask : invokeAll(subtasks))
+                    result.addAll(subtask.join());
+            } else
+                scanSource(file, result);
+            return result;
+        }
+
+        private void scanSource(File source, List<Entry> result) {
+            final String path = source.getAbsolutePath();
+            final long lastModified = source.lastModified();
+            final long size = source.length();
+            final List<Entry> previous = previousEntries.get(path);
+            if (previous != null && previous.get(0).sourceLastModified == lastModified &&
+                    previous.get(0).sourceSize == size) {
+                result.addAll(previous);
+                return;
+            }
+            try {
+                if (isArchive(source))
+                    scanArchive(source, lastModified, size, result);
+                else
+                    try (InputStream in = new FileInputStream(source)) {
+                        addEntry(path, lastModified, size, in, result);
+                    }
+            } catch (IOException ex) {
+                Logger.getLogger(RomLibrary.class.getName())
+                        .log(Level.WARNING, path, ex);
+            }
+        }
+
+        private void scanArchive(File archive, long lastModified, long size,
+                List<Entry> result) throws IOException {
+            try (ZipFile zipFile = new ZipFile(archive)) {
+                final Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+                while (zipEntries.hasMoreElements()) {
+                    final ZipEntry zipEntry = zipEntries.nextElement();
+                    if (zipEntry.isDirectory() || !isROM(zipEntry.getName()))
+                        continue;
+                    try (InputStream in = zipFile.getInputStream(zipEntry)) {
+                        addEntry(archive.getAbsolutePath() + ARCHIVE_ENTRY_SEPARATOR +
+                                zipEntry.getName(), lastModified, size, in, result);
+                    }
+                }
+            }
+        }
+    }
+
+    public static boolean isROM(String fileName) {
+        return fileName.toLowerCase().endsWith(".nes");
+    }
+
+    public static boolean isArchive(File file) {
+        return file.isFile() && file.getName().toLowerCase().endsWith(".zip");
+    }
+
+    private static void addEntry(String path, long lastModified, long size,
+            InputStream in, List<Entry> result) throws IOException {
+        final INESHeader header;
+        try {
+            header = INESHeader.read(ByteBuffer.wrap(in.readNBytes(INESHeader.SIZE)));
+        } catch (IllegalArgumentException ex) {
+            return;
+        }
+        in.readNBytes(header.getTrainerSize());
+        final CRC32 crc32 = new CRC32();
+        final MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-1
+            throw new IllegalStateException(ex);
+        }
+        final byte buffer[] = new byte[65536];
+        int remaining = header.prgROMSize + header.chrROMSize;
+        while (remaining > 0) {
+            final int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (read < 0)
+                return;     // Truncated image
+            crc32.update(buffer, 0, read);
+            sha1.update(buffer, 0, read);
+            remaining -= read;
+        }
+        result.add(new Entry(path, lastModified, size, header.mapperNumber,
+                header.mirroring, header.prgROMSize, header.chrROMSize,
+                header.hasPrgRAM, (int)crc32.getValue(), sha1.digest()));
+    }
+
+    /* The index file starts with a magic number and a format version, followed
+     * by the roots and then the entries.
+     */
+    public synchronized void load() throws IOException {
+        if (!indexFile.isFile())
+            return;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC_NUMBER ||
+                    in.readShort() != INDEX_FORMAT_VERSION)
+                return;
+            final List<File> loadedRoots = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--)
+                loadedRoots.add(new File(in.readUTF()));
+            final Cartridge.Mirroring mirroringValues[] = Cartridge.Mirroring.values();
+            final List<Entry> loadedEntries = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                final String path = in.readUTF();
+                final long lastModified = in.readLong();
+                final long size = in.readLong();
+                final int mapperNumber = in.readUnsignedByte();
+                final Cartridge.Mirroring mirroring = mirroringValues[in.readByte()];
+                final int prgROMSize = in.readInt();
+                final int chrROMSize = in.readInt();
+                final boolean hasBattery = in.readBoolean();
+                final int crc32 = in.readInt();
+                final byte sha1[] = new byte[20];
+                in.readFully(sha1);
+                loadedEntries.add(new Entry(path, lastModified, size, mapperNumber,
+                        mirroring, prgROMSize, chrROMSize, hasBattery, crc32, sha1));
+            }
+            roots.clear();
+            roots.addAll(loadedRoots);
+            entries = loadedEntries;
+        }
+    }
+
+    public synchronized void save() throws IOException {
+        final File directory = indexFile.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create directory " + directory);
+        final File temporaryFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            out.writeInt(INDEX_MAGIC_NUMBER);
+            out.writeShort(INDEX_FORMAT_VERSION);
+            out.writeInt(roots.size());
+            for (File root : roots)
+                out.writeUTF(root.getPath());
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.sourceLastModified);
+                out.writeLong(entry.sourceSize);
+                out.writeByte(entry.mapperNumber);
+                out.writeByte(entry.mirroring.ordinal());
+                out.writeInt(entry.prgROMSize);
+                out.writeInt(entry.chrROMSize);
+                out.writeBoolean(entry.hasBattery);
+                out.writeInt(entry.crc32);
+                out.write(entry.sha1);
+            }
+        }
+        Files.move(temporaryFile.toPath(), indexFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+}
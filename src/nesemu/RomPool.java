@@ -0,0 +1,87 @@
+package nesemu;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/* ROM contents never change while a game runs, so every cartridge loaded with
+ * the same ROMs (e.g. many instances of the same game running in one process)
+ * can share a single copy of them. This pool hands out shared images keyed by
+ * the cartridge's ROM hash (see Cartridge.romHash).
+ *
+ * Images are only weakly referenced by the pool: each cartridge keeps a strong
+ * reference to its image, so an image is released as soon as the last
+ * cartridge using it is garbage collected.
+ *
+ * CHR-RAM is never shared: it's writable and part of each cartridge's state,
+ * so every cartridge with CHR-RAM gets its own (initially zeroed) array.
+ */
+
+public final class RomPool {
+    // The ROMs shared by all cartridges with the same ROM hash. chrROM is null
+    // for cartridges with CHR-RAM.
+    static final class Image {
+        final byte prgROM[];
+        final byte chrROM[];
+
+        private Image(byte[] prgROM, byte[] chrROM) {
+            this.prgROM = prgROM;
+            this.chrROM = chrROM;
+        }
+    }
+
+    private static final class ImageReference extends WeakReference<Image> {
+        private final ByteBuffer key;
+
+        ImageReference(ByteBuffer key, Image image, ReferenceQueue<Image> queue) {
+            super(image, queue);
+            this.key = key;
+        }
+    }
+
+    private static final Map<ByteBuffer, ImageReference> IMAGES = new HashMap<>();
+    private static final ReferenceQueue<Image> RELEASED_IMAGES = new ReferenceQueue<>();
+
+    private RomPool() {
+
+    }
+
+    /* Returns the image shared by cartridges with the given ROM hash, or adds
+     * one made up of the given arrays (which must no longer be modified) if
+     * there is none. chrROM must be null for cartridges with CHR-RAM.
+     */
+    static synchronized Image intern(byte[] romHash, byte[] prgROM, byte[] chrROM) {
+        removeReleasedImages();
+        final ByteBuffer key = ByteBuffer.wrap(romHash.clone());
+        final ImageReference reference = IMAGES.get(key);
+        Image image = reference == null ? null : reference.get();
+        if (image == null) {
+            image = new Image(prgROM, chrROM);
+            IMAGES.put(key, new ImageReference(key, image, RELEASED_IMAGES));
+        }
+        return image;
+    }
+
+    // The image shared by cartridges with the given ROM hash, or null if
+    // there is none.
+    static synchronized Image find(byte[] romHash) {
+        removeReleasedImages();
+        final ImageReference reference = IMAGES.get(ByteBuffer.wrap(romHash));
+        return reference == null ? null : reference.get();
+    }
+
+    // Number of images currently shared.
+    public static synchronized int size() {
+        removeReleasedImages();
+        return IMAGES.size();
+    }
+
+    private static void removeReleasedImages() {
+        ImageReference reference;
+        while ((reference = (ImageReference)RELEASED_IMAGES.poll()) != null)
+            // The key may have been reused for a newer image.
+            IMAGES.remove(reference.key, reference);
+    }
+}
@@ -0,0 +1,110 @@
+package nesemu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/* Numbered quick-save slots for a single game, all stored in one file which
+ * is memory-mapped as a whole. Saving to a slot thus amounts to taking a
+ * snapshot (see NES.saveState()) and copying it into the mapping; the
+ * operating system takes care of writing it to disk in the background.
+ *
+ * Each slot has a fixed size, and is laid out as follows:
+ *
+ *   - Magic number (4 bytes) and snapshot format version (2 bytes). A slot
+ *     that doesn't start with them is considered empty.
+ *   - SHA-1 hash of the game's ROMs (20 bytes).
+ *   - Time at which the slot was saved, in milliseconds since the epoch
+ *     (8 bytes).
+ *   - Length of the snapshot (4 bytes).
+ *   - Thumbnail of the screen (64x60 palette indices, one byte each).
+ *   - The snapshot itself.
+ */
+
+public class SaveStateSlots {
+    public static final int NUM_SLOTS = 10;
+
+    private static final int SLOT_MAGIC_NUMBER = 0x4E534C54;    // "NSLT"
+    private static final int THUMBNAIL_SCALE = 4;
+    private static final int THUMBNAIL_WIDTH = PPU.SCREEN_WIDTH / THUMBNAIL_SCALE;
+    private static final int THUMBNAIL_HEIGHT = PPU.SCREEN_HEIGHT / THUMBNAIL_SCALE;
+    private static final int HEADER_SIZE = 4 + 2 + 20 + 8 + 4 +
+            THUMBNAIL_WIDTH * THUMBNAIL_HEIGHT;
+
+    private final MappedByteBuffer mapping;
+    private final int slotSize;
+    private final byte romHash[];
+    private final StateBuffer state;
+
+    public SaveStateSlots(File file, NES nes) throws IOException {
+        this(file, nes.cartridge, nes.getStateSize());
+    }
+
+    // For the given cartridge, whose snapshots have the given size (see
+    // NES.getStateSize()); doesn't access the NES, so it can be called from
+    // another thread while the NES runs.
+    public SaveStateSlots(File file, Cartridge cartridge, int stateSize)
+            throws IOException {
+        romHash = cartridge.romHash;
+        state = new StateBuffer(stateSize);
+        slotSize = HEADER_SIZE + stateSize;
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create directory " + directory);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+                FileChannel channel = randomAccessFile.getChannel()) {
+            // Slots saved with another snapshot size can't be loaded anyway.
+            if (channel.size() != (long)slotSize * NUM_SLOTS)
+                channel.truncate(0);
+            mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    (long)slotSize * NUM_SLOTS);
+        }
+    }
+
+    // Slots are stored under ~/.nesemu/states/, in a file named after the
+    // hash of the game's ROMs.
+    public static File getDefaultFile(Cartridge cartridge) {
+        return new File(System.getProperty("user.home"), ".nesemu" +
+                File.separator + "states" + File.separator +
+                cartridge.getROMHashString() + ".slots");
+    }
+
+    public void save(int slot, NES nes) {
+        nes.saveState(state);
+        final int slotOffset = slot * slotSize;
+        mapping.position(slotOffset);
+        mapping.putInt(SLOT_MAGIC_NUMBER).putShort(NES.STATE_FORMAT_VERSION);
+        mapping.put(romHash).putLong(System.currentTimeMillis()).putInt(state.size());
+        final byte frame[] = nes.getFrame();
+        for (int y = 0; y < THUMBNAIL_HEIGHT; y++)
+            for (int x = 0; x < THUMBNAIL_WIDTH; x++)
+                mapping.put(frame[(y * PPU.SCREEN_WIDTH + x) * THUMBNAIL_SCALE]);
+        mapping.put(state.array(), 0, state.size());
+    }
+
+    /* Restores the snapshot stored in the given slot into the NES. Returns false
+     * (leaving the NES untouched) if the slot is empty or holds a snapshot that
+     * can't be loaded.
+     */
+    public boolean load(int slot, NES nes) {
+        final int slotOffset = slot * slotSize;
+        mapping.position(slotOffset);
+        if (mapping.getInt() != SLOT_MAGIC_NUMBER ||
+                mapping.getShort() != NES.STATE_FORMAT_VERSION)
+            return false;
+        for (byte hashByte : romHash)
+            if (mapping.get() != hashByte)
+                return false;
+        mapping.getLong();
+        final int stateSize = mapping.getInt();
+        if (stateSize > state.capacity())
+            return false;
+        mapping.position(slotOffset + HEADER_SIZE);
+        mapping.get(state.array(), 0, stateSize);
+        state.setSize(stateSize);
+        nes.loadState(state);
+        return true;
+    }
+}
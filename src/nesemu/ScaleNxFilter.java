@@ -0,0 +1,79 @@
+package nesemu;
+
+/* The Scale2x and Scale3x pixel art scalers (also known as EPX/AdvMAME),
+ * which smooth diagonal edges without blurring. The algorithms are described
+ * at https://www.scale2x.it/algorithm
+ */
+
+public class ScaleNxFilter implements VideoFilter {
+    private final int scale;
+
+    public ScaleNxFilter(int scale) {
+        if (scale != 2 && scale != 3)
+            throw new IllegalArgumentException("Only Scale2x and Scale3x are supported");
+        this.scale = scale;
+    }
+
+    @Override
+    public int getScale() {
+        return scale;
+    }
+
+    @Override
+    public void apply(int[] src, int width, int height, int[] dst, int firstRow,
+            int lastRow) {
+        for (int y = firstRow; y < lastRow; y++) {
+            final int up = Math.max(y - 1, 0) * width;
+            final int row = y * width;
+            final int down = Math.min(y + 1, height - 1) * width;
+            for (int x = 0; x < width; x++) {
+                final int left = Math.max(x - 1, 0), right = Math.min(x + 1, width - 1);
+                // Neighbors are named after their position in the 3x3 block
+                // surrounding pixel E:  A B C / D E F / G H I
+                final int a = src[up + left], b = src[up + x], c = src[up + right];
+                final int d = src[row + left], e = src[row + x], f = src[row + right];
+                final int g = src[down + left], h = src[down + x], i = src[down + right];
+                if (scale == 2)
+                    scale2x(dst, width * 2, x * 2, y * 2, b, d, e, f, h);
+                else
+                    scale3x(dst, width * 3, x * 3, y * 3, a, b, c, d, e, f, g, h, i);
+            }
+        }
+    }
+
+    private static void scale2x(int[] dst, int dstWidth, int dstX, int dstY,
+            int b, int d, int e, int f, int h) {
+        final int offset = dstY * dstWidth + dstX;
+        if (b != h && d != f) {
+            dst[offset] = d == b ? d : e;
+            dst[offset + 1] = b == f ? f : e;
+            dst[offset + dstWidth] = d == h ? d : e;
+            dst[offset + dstWidth + 1] = h == f ? f : e;
+        } else {
+            dst[offset] = dst[offset + 1] = e;
+            dst[offset + dstWidth] = dst[offset + dstWidth + 1] = e;
+        }
+    }
+
+    private static void scale3x(int[] dst, int dstWidth, int dstX, int dstY,
+            int a, int b, int c, int d, int e, int f, int g, int h, int i) {
+        final int row0 = dstY * dstWidth + dstX;
+        final int row1 = row0 + dstWidth, row2 = row1 + dstWidth;
+        if (b != h && d != f) {
+            dst[row0] = d == b ? d : e;
+            dst[row0 + 1] = (d == b && e != c) || (b == f && e != a) ? b : e;
+            dst[row0 + 2] = b == f ? f : e;
+            dst[row1] = (d == b && e != g) || (d == h && e != a) ? d : e;
+            dst[row1 + 1] = e;
+            dst[row1 + 2] = (b == f && e != i) || (h == f && e != c) ? f : e;
+            dst[row2] = d == h ? d : e;
+            dst[row2 + 1] = (d == h && e != i) || (h == f && e != g) ? h : e;
+            dst[row2 + 2] = h == f ? f : e;
+        } else
+            for (int k = 0; k < 3; k++) {
+                dst[row0 + k] = e;
+                dst[row1 + k] = e;
+                dst[row2 + k] = e;
+            }
+    }
+}
@@ -0,0 +1,36 @@
+package nesemu;
+
+/* Imitates the visible gaps between the scanlines of a CRT screen: the frame
+ * is upscaled with nearest neighbor, and the last row of each block of scaled
+ * rows is darkened.
+ */
+
+public class ScanlinesFilter implements VideoFilter {
+    private final NearestNeighborFilter scaler;
+    private final int scale;
+
+    public ScanlinesFilter(int scale) {
+        if (scale < 2)
+            throw new IllegalArgumentException("Scanlines need a scale of at least 2");
+        this.scaler = new NearestNeighborFilter(scale);
+        this.scale = scale;
+    }
+
+    @Override
+    public int getScale() {
+        return scale;
+    }
+
+    @Override
+    public void apply(int[] src, int width, int height, int[] dst, int firstRow,
+            int lastRow) {
+        scaler.apply(src, width, height, dst, firstRow, lastRow);
+        final int dstWidth = width * scale;
+        for (int y = firstRow; y < lastRow; y++) {
+            final int gapRow = (y * scale + scale - 1) * dstWidth;
+            for (int i = gapRow; i < gapRow + dstWidth; i++)
+                // Halve each color channel, keeping the alpha channel intact.
+                dst[i] = (dst[i] & 0xFF000000) | ((dst[i] >>> 1) & 0x7F7F7F);
+        }
+    }
+}
@@ -3,10 +3,16 @@ package nesemu;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 
-public class ScreenPanel extends javax.swing.JPanel {
-    private final static int SCREEN_WIDTH = 256;
-    private final static int SCREEN_HEIGHT = 240;
-    BufferedImage img;
+public class ScreenPanel extends javax.swing.JPanel implements FrameSink {
+    private final static int SCREEN_WIDTH = PPU.SCREEN_WIDTH;
+    private final static int SCREEN_HEIGHT = PPU.SCREEN_HEIGHT;
+    private VideoPostProcessor postProcessor;
+
+    private double targetRatio;
+    private int targetX;
+    private int targetY;
+    private int targetWidth;
+    private int targetHeight;
 
     public ScreenPanel() {
         initComponents();
@@ -14,15 +20,38 @@ public class ScreenPanel extends javax.swing.JPanel {
 
     @Override
     public void paint(Graphics g) {
-        // The image is scaled to center it in the panel while maintaining its
-        // aspect ratio.
+        BufferedImage img = postProcessor.acquireImage();
+        try {
+            if (img != null)
+                g.drawImage(img, targetX, targetY, targetWidth, targetHeight, null);
+        } finally {
+            postProcessor.releaseImage();
+        }
+    }
+
+    // The image is scaled to center it in the panel while maintaining its
+    // aspect ratio.
+    private void updateTargetArea() {
         int width = getWidth(), height = getHeight();
-        double ratio = Math.min((double)width / SCREEN_WIDTH,
+        targetRatio = Math.min((double)width / SCREEN_WIDTH,
                 (double)height / SCREEN_HEIGHT);
-        int targetWidth = (int)(ratio * SCREEN_WIDTH);
-        int targetHeight = (int)(ratio * SCREEN_HEIGHT);
-        int targetX = (width - targetWidth) / 2, targetY = (height - targetHeight) / 2;
-        g.drawImage(img, targetX, targetY, targetWidth, targetHeight, null);
+        targetWidth = (int)(targetRatio * SCREEN_WIDTH);
+        targetHeight = (int)(targetRatio * SCREEN_HEIGHT);
+        targetX = (width - targetWidth) / 2;
+        targetY = (height - targetHeight) / 2;
+    }
+
+    @Override
+    public void setBounds(int x, int y, int width, int height) {
+        super.setBounds(x, y, width, height);
+        updateTargetArea();
+    }
+
+    // Only the area of the panel covered by the updated rows is repainted.
+    private void repaintRows(int firstRow, int lastRow) {
+        int y = targetY + (int)Math.floor(firstRow * targetRatio);
+        int height = (int)Math.ceil((lastRow - firstRow) * targetRatio) + 1;
+        repaint(targetX, y, targetWidth, height);
     }
 
     @SuppressWarnings("unchecked")
@@ -42,8 +71,19 @@ public class ScreenPanel extends javax.swing.JPanel {
     }// </editor-fold>//GEN-END:initComponents
 
     public void init() {
-        img = new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT,
-                BufferedImage.TYPE_INT_ARGB);
+        postProcessor = new VideoPostProcessor(this::repaintRows);
+    }
+
+    public void setFilter(VideoFilter filter) {
+        postProcessor.setFilter(filter);
+    }
+
+    // Called from the emulation thread once per frame; the frame is filtered
+    // in the background, and the changed parts of the panel repainted once
+    // it's ready.
+    @Override
+    public void frameReady(byte[] pixels, byte[] scanlineEmphasis) {
+        postProcessor.frameReady(pixels, scanlineEmphasis);
     }
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
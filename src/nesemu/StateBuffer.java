@@ -0,0 +1,75 @@
+package nesemu;
+
+import java.nio.ByteBuffer;
+
+/* A reusable, preallocated container for NES state snapshots (see
+ * NES.saveState() and NES.loadState()). Saving into and loading from a
+ * StateBuffer performs no allocation at all, so features which need lots of
+ * snapshots per second (rewinding, rollback netplay...) can keep a pool of
+ * them and overwrite them over and over.
+ */
+
+public class StateBuffer {
+    private final ByteBuffer buffer;
+    private int size;
+
+    public StateBuffer(int capacity) {
+        buffer = ByteBuffer.allocate(capacity);
+        size = 0;
+    }
+
+    // Creates a buffer big enough for the snapshots of the given NES (and of
+    // any other NES running the same cartridge).
+    public StateBuffer(NES nes) {
+        this(nes.getStateSize());
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    // Size in bytes of the snapshot currently stored, or 0 if there is none.
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // The backing array; only the first size() bytes are meaningful.
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void copyFrom(StateBuffer other) {
+        System.arraycopy(other.array(), 0, array(), 0, other.size);
+        size = other.size;
+    }
+
+    // Sets the size of a snapshot written directly to array().
+    void setSize(int size) {
+        if (size > buffer.capacity())
+            throw new IllegalArgumentException("Snapshot too big for the buffer");
+        this.size = size;
+    }
+
+    ByteBuffer startWriting() {
+        buffer.clear();
+        return buffer;
+    }
+
+    void finishWriting() {
+        size = buffer.position();
+    }
+
+    ByteBuffer startReading() {
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+}
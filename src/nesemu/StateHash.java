@@ -0,0 +1,73 @@
+package nesemu;
+
+import java.util.Arrays;
+
+/* Hashes of the state of each device of an NES (see
+ * NES.STATE_COMPONENT_NAMES), used to check that two emulators which should
+ * be running the same game (e. g. the peers of a netplay session) are still
+ * identical, and to tell which device they differ in when they aren't.
+ *
+ * The hashes are computed from a snapshot, so any StateBuffer already saved
+ * (e. g. one kept for rollback) can be hashed without taking another one. The
+ * layout of the snapshot only depends on the cartridge, so it's copied once
+ * from the NES. Nothing is allocated after construction.
+ */
+
+public class StateHash {
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final long MULTIPLIER_1 = 0xC2B2AE3D27D4EB4FL;
+    private static final long MULTIPLIER_2 = 0x165667B19E3779F9L;
+
+    private final int layout[];
+    private final long hashes[];
+    private final StateBuffer state;
+
+    public StateHash(NES nes) {
+        layout = nes.getStateLayout().clone();
+        hashes = new long[NES.STATE_COMPONENT_NAMES.length];
+        state = new StateBuffer(nes);
+    }
+
+    // Whether the snapshots of the NES have the layout this was made for.
+    public boolean fits(NES nes) {
+        return Arrays.equals(layout, nes.getStateLayout());
+    }
+
+    // Takes a snapshot of the NES and hashes it.
+    public void compute(NES nes) {
+        nes.saveState(state);
+        compute(state);
+    }
+
+    // Hashes a snapshot with the layout this was made for.
+    public void compute(StateBuffer snapshot) {
+        final byte data[] = snapshot.array();
+        for (int i = 0; i < hashes.length; i++)
+            hashes[i] = hash(data, layout[i], layout[i + 1]);
+    }
+
+    public int getComponentCount() {
+        return hashes.length;
+    }
+
+    public long get(int component) {
+        return hashes[component];
+    }
+
+    // 8 bytes at a time; the tail (if any) byte by byte.
+    private static long hash(byte[] data, int from, int to) {
+        long hash = SEED ^ (to - from);
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            final long word = (data[i] & 0xFFL) | (data[i + 1] & 0xFFL) << 8 |
+                    (data[i + 2] & 0xFFL) << 16 | (data[i + 3] & 0xFFL) << 24 |
+                    (data[i + 4] & 0xFFL) << 32 | (data[i + 5] & 0xFFL) << 40 |
+                    (data[i + 6] & 0xFFL) << 48 | (data[i + 7] & 0xFFL) << 56;
+            hash = Long.rotateLeft(hash ^ word * MULTIPLIER_1, 31) * MULTIPLIER_2;
+        }
+        for (; i < to; i++)
+            hash = (hash ^ (data[i] & 0xFF)) * MULTIPLIER_1;
+        hash ^= hash >>> 29;
+        return hash * MULTIPLIER_2 ^ hash >>> 32;
+    }
+}
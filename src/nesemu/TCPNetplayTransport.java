@@ -0,0 +1,148 @@
+package nesemu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/* A NetplayTransport over a TCP connection. Every message starts with a 1-byte
+ * type and a 4-byte frame number:
+ *
+ *   - Inputs (type 0) go on with the number of frames in the batch (1 byte)
+ *     and then the button bitmask of each frame, starting at the given one.
+ *   - Control messages go on with the length of the payload (4 bytes) and the
+ *     payload itself.
+ *
+ * The streams are buffered and created once per connection, and Nagle's
+ * algorithm is disabled so that each flush is sent right away. The buffers
+ * used to receive payloads are reused (and only grow for sync snapshots), so
+ * neither sending nor receiving inputs allocates.
+ */
+
+public class TCPNetplayTransport implements NetplayTransport {
+    static final byte INPUTS_MESSAGE = 0;
+    static final int MAX_INPUTS_PER_MESSAGE = 255;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private Listener listener;
+
+    // Batch of inputs waiting to be flushed, for consecutive frames.
+    private final byte pendingInputs[];
+    private int pendingFirstFrame;
+    private int pendingCount;
+    // Only updated with the lock held.
+    private volatile long bytesSent;
+
+    public TCPNetplayTransport(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        pendingInputs = new byte[MAX_INPUTS_PER_MESSAGE];
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        final Thread receiverThread = new Thread(this::receiveMessages,
+                "Netplay receiver");
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+    }
+
+    private void receiveMessages() {
+        ByteBuffer payload = ByteBuffer.allocate(256);
+        try {
+            while (true) {
+                final byte type = in.readByte();
+                final int frame = in.readInt();
+                if (type == INPUTS_MESSAGE) {
+                    for (int i = in.readUnsignedByte(), f = frame; i > 0; i--, f++)
+                        listener.inputReceived(f, in.readByte());
+                } else {
+                    final int length = in.readInt();
+                    if (length < 0)
+                        throw new IOException("Invalid message length");
+                    if (payload.capacity() < length)
+                        payload = ByteBuffer.allocate(length);
+                    payload.clear();
+                    in.readFully(payload.array(), 0, length);
+                    payload.limit(length);
+                    listener.messageReceived(type, frame, payload);
+                }
+            }
+        } catch (IOException ex) {
+            close();
+            listener.closed();
+        }
+    }
+
+    @Override
+    public synchronized void sendInput(int frame, byte buttons) throws IOException {
+        if (pendingCount == MAX_INPUTS_PER_MESSAGE ||
+                (pendingCount > 0 && frame != pendingFirstFrame + pendingCount))
+            writePendingInputs();
+        if (pendingCount == 0)
+            pendingFirstFrame = frame;
+        pendingInputs[pendingCount++] = buttons;
+    }
+
+    @Override
+    public synchronized void sendMessage(byte type, int frame, ByteBuffer payload)
+            throws IOException {
+        writePendingInputs();
+        out.writeByte(type);
+        out.writeInt(frame);
+        bytesSent += 9;
+        if (payload == null)
+            out.writeInt(0);
+        else {
+            bytesSent += payload.remaining();
+            out.writeInt(payload.remaining());
+            if (payload.hasArray()) {
+                out.write(payload.array(), payload.arrayOffset() + payload.position(),
+                        payload.remaining());
+                payload.position(payload.limit());
+            } else
+                while (payload.hasRemaining())
+                    out.writeByte(payload.get());
+        }
+        out.flush();
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        writePendingInputs();
+        out.flush();
+    }
+
+    private void writePendingInputs() throws IOException {
+        if (pendingCount == 0)
+            return;
+        out.writeByte(INPUTS_MESSAGE);
+        out.writeInt(pendingFirstFrame);
+        out.writeByte(pendingCount);
+        out.write(pendingInputs, 0, pendingCount);
+        bytesSent += 6 + pendingCount;
+        pendingCount = 0;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+
+        }
+    }
+}
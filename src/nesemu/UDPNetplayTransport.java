@@ -0,0 +1,538 @@
+package nesemu;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Random;
+
+/* A NetplayTransport over UDP. Over TCP, a lost packet holds back every packet
+ * sent after it until it has been retransmitted, which freezes both emulators;
+ * here, every packet carries all the inputs that the peer hasn't acknowledged
+ * yet (i. e. the inputs of the last round trip or so), so a lost packet costs
+ * nothing as long as any of the following ones arrives.
+ *
+ * Each packet is made up of:
+ *
+ *   - A header: the packet kind, its sequence number and the acknowledgements
+ *     of what has been received from the peer: the sequence number of the
+ *     last packet, a bitfield telling which of the 32 packets before it also
+ *     arrived, the number of inputs and the number of control bytes received.
+ *   - The unacknowledged inputs (up to MAX_INPUTS_PER_PACKET), starting with
+ *     the index of the first one. Each input takes its frame, its buttons and
+ *     the number of control messages sent before it.
+ *   - A chunk of the control stream (possibly empty), starting with its
+ *     offset in the stream.
+ *
+ * Control messages are serialized into a reliable byte stream (the same way
+ * TCPNetplayTransport does, plus the number of inputs sent before each one),
+ * which is split into chunks and sent go-back-N: up to CONTROL_WINDOW bytes
+ * may be unacknowledged, chunks received out of order are dropped, and the
+ * chunks from the first unacknowledged byte are sent again when a packet that
+ * carried one is known to be lost (it's missing from the acknowledgement
+ * bitfield while three packets sent after it have arrived), or when nothing
+ * has been acknowledged for RETRANSMIT_NANOS. Inputs and control messages
+ * are delivered in the order they were sent, by holding each one back until
+ * as many of the other kind as were sent before it have been delivered.
+ *
+ * A thread polls the channel every TICK_MILLIS, and sends a packet when
+ * control data must be acknowledged or nothing has been sent for a while, so
+ * that acknowledgements keep flowing while the session is paused. The peer
+ * is considered gone after TIMEOUT_NANOS without packets, or when it sends a
+ * CLOSE packet. Packet loss can be simulated (on the sending side) to test
+ * the transport over the loopback interface; see getSimulatedLossRate().
+ */
+
+public class UDPNetplayTransport implements NetplayTransport {
+    public static final String SIMULATED_LOSS_RATE_PROPERTY = "nesemu.netplayPacketLoss";
+
+    private static final byte DATA_PACKET = 1;
+    private static final byte CLOSE_PACKET = 2;
+    private static final int MAX_PACKET_SIZE = 1400;
+    private static final int HEADER_SIZE = 21;
+    private static final int MAX_INPUTS_PER_PACKET = 32;
+    private static final int INPUT_RECORD_SIZE = 9;
+    private static final int MAX_CHUNK_SIZE = MAX_PACKET_SIZE - HEADER_SIZE - 5 -
+            MAX_INPUTS_PER_PACKET * INPUT_RECORD_SIZE - 6;
+    private static final int CONTROL_MESSAGE_HEADER_SIZE = 13;
+    private static final int CONTROL_WINDOW = 64 * 1024;
+    // Inputs sent and not acknowledged yet, and packets sent, are kept in
+    // rings indexed by input index and sequence number.
+    private static final int INPUT_LOG_SIZE = 256;
+    private static final int INPUT_LOG_MASK = INPUT_LOG_SIZE - 1;
+    private static final int SENT_PACKETS_SIZE = 256;
+    private static final int SENT_PACKETS_MASK = SENT_PACKETS_SIZE - 1;
+    private static final int SOCKET_BUFFER_SIZE = 1 << 20;
+
+    private static final long TICK_MILLIS = 10;
+    private static final long KEEPALIVE_NANOS = 50000000L;
+    private static final long RETRANSMIT_NANOS = 200000000L;
+    private static final long TIMEOUT_NANOS = 10000000000L;
+    private static final long CONNECT_TIMEOUT_NANOS = 5000000000L;
+    private static final long CONNECT_RETRY_MILLIS = 100;
+
+    private final DatagramChannel channel;
+    private final double lossRate;
+    private final Random lossRandom;
+    private Listener listener;
+    private volatile boolean isClosed;
+    // Only updated with the lock held.
+    private volatile long bytesSent;
+
+    // Everything below is guarded by this.
+    private final ByteBuffer sendBuffer;
+    private int nextSequence;
+    private long lastSendTime;
+    private boolean isAckPending;
+    private final int sentSequences[];
+    private final int sentChunkOffsets[];
+    private final int sentChunkLengths[];
+    private final boolean sentIsResolved[];
+
+    private final int inputLogFrames[];
+    private final byte inputLogButtons[];
+    private final int inputLogControlCounts[];
+    private int inputsSent;
+    private int inputsAcknowledged;
+    private int controlMessagesSent;
+
+    // Control stream bytes from controlOutBase on; those before
+    // controlOutAcknowledged may be discarded.
+    private byte controlOut[];
+    private int controlOutBase;
+    private int controlOutAcknowledged;
+    private int controlOutEnd;
+    private int controlOutNext;
+    private long lastControlProgressTime;
+
+    private int lastReceivedSequence;
+    private int receivedBits;
+    private long lastReceiveTime;
+    private int inputsReceived;
+    private int controlMessagesReceived;
+    // Contiguous control bytes received and not delivered yet, which end at
+    // stream offset controlInEnd.
+    private byte controlIn[];
+    private ByteBuffer controlInView;
+    private int controlInLength;
+    private int controlInEnd;
+
+    private UDPNetplayTransport(DatagramChannel channel, double lossRate)
+            throws IOException {
+        this.channel = channel;
+        this.lossRate = lossRate;
+        lossRandom = new Random();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+        sendBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        sentSequences = new int[SENT_PACKETS_SIZE];
+        sentChunkOffsets = new int[SENT_PACKETS_SIZE];
+        sentChunkLengths = new int[SENT_PACKETS_SIZE];
+        sentIsResolved = new boolean[SENT_PACKETS_SIZE];
+        inputLogFrames = new int[INPUT_LOG_SIZE];
+        inputLogButtons = new byte[INPUT_LOG_SIZE];
+        inputLogControlCounts = new int[INPUT_LOG_SIZE];
+        controlOut = new byte[4096];
+        controlIn = new byte[4096];
+        controlInView = ByteBuffer.wrap(controlIn);
+        lastReceivedSequence = -1;
+    }
+
+    /* Binds to the given port; waitForPeer() must then be called to wait for
+     * a client.
+     */
+    public UDPNetplayTransport(int port, double lossRate) throws IOException {
+        this(DatagramChannel.open(), lossRate);
+        try {
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /* Blocks until a client sends its first packet, and takes it as the peer.
+     * Closing the transport from another thread makes it throw IOException.
+     */
+    public void waitForPeer() throws IOException {
+        final ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        SocketAddress address;
+        do {
+            packet.clear();
+            address = channel.receive(packet);
+            packet.flip();
+        } while (address == null || packet.remaining() < HEADER_SIZE ||
+                packet.get(0) != DATA_PACKET);
+        channel.connect(address);
+    }
+
+    public SocketAddress getPeerAddress() throws IOException {
+        return channel.getRemoteAddress();
+    }
+
+    /* Connects to a server, sending packets until it replies. Throws
+     * IOException if it doesn't reply within CONNECT_TIMEOUT_NANOS.
+     */
+    public static UDPNetplayTransport connect(String hostname, int port,
+            double lossRate) throws IOException {
+        final UDPNetplayTransport transport =
+                new UDPNetplayTransport(DatagramChannel.open(), lossRate);
+        try {
+            transport.channel.connect(new InetSocketAddress(hostname, port));
+            transport.channel.configureBlocking(false);
+            final ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_SIZE);
+            final long start = System.nanoTime();
+            try (Selector selector = Selector.open()) {
+                transport.channel.register(selector, SelectionKey.OP_READ);
+                while (true) {
+                    synchronized (transport) {
+                        transport.sendPacket();
+                    }
+                    selector.select(CONNECT_RETRY_MILLIS);
+                    selector.selectedKeys().clear();
+                    packet.clear();
+                    try {
+                        if (transport.channel.read(packet) > 0)
+                            return transport;
+                    } catch (PortUnreachableException ex) {
+                        // The server isn't listening yet
+                    }
+                    if (System.nanoTime() - start > CONNECT_TIMEOUT_NANOS)
+                        throw new IOException("The server didn't reply");
+                }
+            }
+        } catch (IOException ex) {
+            transport.channel.close();
+            throw ex;
+        }
+    }
+
+    // The rate of packets to be dropped, from the system property
+    // SIMULATED_LOSS_RATE_PROPERTY (0 by default).
+    public static double getSimulatedLossRate() {
+        try {
+            return Double.parseDouble(System.getProperty(SIMULATED_LOSS_RATE_PROPERTY, "0"));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        synchronized (this) {
+            lastReceiveTime = System.nanoTime();
+            lastControlProgressTime = lastReceiveTime;
+        }
+        final Thread networkThread = new Thread(this::run, "Netplay receiver");
+        networkThread.setDaemon(true);
+        networkThread.start();
+    }
+
+    private void run() {
+        final ByteBuffer packet = ByteBuffer.allocate(65536);
+        try (Selector selector = Selector.open()) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            while (!isClosed) {
+                selector.select(TICK_MILLIS);
+                selector.selectedKeys().clear();
+                while (true) {
+                    packet.clear();
+                    try {
+                        if (channel.read(packet) <= 0)
+                            break;
+                    } catch (PortUnreachableException ex) {
+                        break;
+                    }
+                    packet.flip();
+                    synchronized (this) {
+                        try {
+                            processPacket(packet);
+                        } catch (RuntimeException ex) {
+                            // Malformed packet
+                        }
+                    }
+                }
+                synchronized (this) {
+                    tick();
+                }
+            }
+        } catch (IOException ex) {
+
+        } finally {
+            close();
+            listener.closed();
+        }
+    }
+
+    private void tick() throws IOException {
+        if (isClosed)
+            return;
+        final long now = System.nanoTime();
+        if (now - lastReceiveTime > TIMEOUT_NANOS)
+            throw new IOException("The peer timed out");
+        if (controlOutEnd > controlOutAcknowledged &&
+                now - lastControlProgressTime > RETRANSMIT_NANOS) {
+            controlOutNext = controlOutAcknowledged;
+            lastControlProgressTime = now;
+        }
+        sendControlChunks();
+        if (isAckPending || now - lastSendTime > KEEPALIVE_NANOS)
+            sendPacket();
+    }
+
+    private void processPacket(ByteBuffer packet) throws IOException {
+        if (packet.remaining() < HEADER_SIZE)
+            return;
+        final byte kind = packet.get();
+        if (kind == CLOSE_PACKET) {
+            isClosed = true;
+            return;
+        }
+        if (kind != DATA_PACKET)
+            return;
+        final int sequence = packet.getInt();
+        final int ack = packet.getInt();
+        final int ackBits = packet.getInt();
+        final int inputAck = packet.getInt();
+        final int controlAck = packet.getInt();
+        final int firstInput = packet.getInt();
+        final int inputCount = packet.get() & 0xFF;
+        final int inputsPosition = packet.position();
+        packet.position(inputsPosition + inputCount * INPUT_RECORD_SIZE);
+        final int chunkOffset = packet.getInt();
+        final int chunkLength = packet.getShort() & 0xFFFF;
+        lastReceiveTime = System.nanoTime();
+        recordReceived(sequence);
+        if (ack >= 0)
+            processAcks(ack, ackBits);
+        if (inputAck > inputsAcknowledged && inputAck <= inputsSent)
+            inputsAcknowledged = inputAck;
+        if (controlAck > controlOutAcknowledged && controlAck <= controlOutEnd) {
+            controlOutAcknowledged = controlAck;
+            if (controlOutNext < controlAck)
+                controlOutNext = controlAck;
+            lastControlProgressTime = lastReceiveTime;
+        }
+        if (chunkLength > 0) {
+            isAckPending = true;
+            if (chunkOffset == controlInEnd)
+                appendControlIn(packet, chunkLength);
+        }
+        // Deliver everything that can be delivered in order.
+        int input = inputsReceived - firstInput;
+        while (!isClosed) {
+            if (isControlMessageReady() &&
+                    controlInView.getInt(5) == inputsReceived)
+                deliverControlMessage();
+            else if (input >= 0 && input < inputCount) {
+                final int position = inputsPosition + input * INPUT_RECORD_SIZE;
+                if (packet.getInt(position + 5) != controlMessagesReceived)
+                    break;
+                listener.inputReceived(packet.getInt(position), packet.get(position + 4));
+                inputsReceived++;
+                input++;
+            } else
+                break;
+        }
+    }
+
+    private void recordReceived(int sequence) {
+        if (sequence > lastReceivedSequence) {
+            final int shift = sequence - lastReceivedSequence;
+            if (lastReceivedSequence < 0 || shift > 32)
+                receivedBits = 0;
+            else if (shift == 32)
+                receivedBits = 1 << 31;
+            else
+                receivedBits = (receivedBits << shift) | (1 << (shift - 1));
+            lastReceivedSequence = sequence;
+        } else {
+            final int distance = lastReceivedSequence - sequence;
+            if (distance >= 1 && distance <= 32)
+                receivedBits |= 1 << (distance - 1);
+        }
+    }
+
+    // Marks the packets acknowledged, and sends the control stream again from
+    // the chunk of any packet that is known to be lost.
+    private void processAcks(int ack, int ackBits) {
+        for (int i = 0; i <= 32; i++) {
+            final int sequence = ack - i;
+            final int entry = sequence & SENT_PACKETS_MASK;
+            if (sequence < 0 || sentSequences[entry] != sequence || sentIsResolved[entry])
+                continue;
+            final boolean isAcknowledged = i == 0 || (ackBits & (1 << (i - 1))) != 0;
+            if (!isAcknowledged && i < 3)
+                continue;
+            sentIsResolved[entry] = true;
+            if (!isAcknowledged && sentChunkLengths[entry] > 0 &&
+                    sentChunkOffsets[entry] + sentChunkLengths[entry] > controlOutAcknowledged)
+                controlOutNext = Math.min(controlOutNext,
+                        Math.max(sentChunkOffsets[entry], controlOutAcknowledged));
+        }
+    }
+
+    private void appendControlIn(ByteBuffer packet, int length) {
+        if (controlInLength + length > controlIn.length) {
+            controlIn = Arrays.copyOf(controlIn,
+                    Math.max(controlIn.length * 2, controlInLength + length));
+            controlInView = ByteBuffer.wrap(controlIn);
+        }
+        packet.get(controlIn, controlInLength, length);
+        controlInLength += length;
+        controlInEnd += length;
+    }
+
+    private boolean isControlMessageReady() {
+        return controlInLength >= CONTROL_MESSAGE_HEADER_SIZE && controlInLength >=
+                CONTROL_MESSAGE_HEADER_SIZE + controlInView.getInt(9);
+    }
+
+    private void deliverControlMessage() {
+        final int length = controlInView.getInt(9);
+        final int messageSize = CONTROL_MESSAGE_HEADER_SIZE + length;
+        listener.messageReceived(controlIn[0], controlInView.getInt(1),
+                ByteBuffer.wrap(controlIn, CONTROL_MESSAGE_HEADER_SIZE, length).slice());
+        controlMessagesReceived++;
+        controlInLength -= messageSize;
+        System.arraycopy(controlIn, messageSize, controlIn, 0, controlInLength);
+    }
+
+    @Override
+    public synchronized void sendInput(int frame, byte buttons) throws IOException {
+        if (inputsSent - inputsAcknowledged >= INPUT_LOG_SIZE)
+            throw new IOException("The peer stopped acknowledging inputs");
+        final int entry = inputsSent & INPUT_LOG_MASK;
+        inputLogFrames[entry] = frame;
+        inputLogButtons[entry] = buttons;
+        inputLogControlCounts[entry] = controlMessagesSent;
+        inputsSent++;
+    }
+
+    @Override
+    public synchronized void sendMessage(byte type, int frame, ByteBuffer payload)
+            throws IOException {
+        final int length = payload == null ? 0 : payload.remaining();
+        reserveControlOut(CONTROL_MESSAGE_HEADER_SIZE + length);
+        final ByteBuffer out = ByteBuffer.wrap(controlOut, controlOutEnd - controlOutBase,
+                CONTROL_MESSAGE_HEADER_SIZE + length);
+        out.put(type).putInt(frame).putInt(inputsSent).putInt(length);
+        if (payload != null)
+            out.put(payload);
+        if (controlOutEnd == controlOutAcknowledged)
+            lastControlProgressTime = System.nanoTime();
+        controlOutEnd += CONTROL_MESSAGE_HEADER_SIZE + length;
+        controlMessagesSent++;
+        sendControlChunks();
+    }
+
+    // Discards the acknowledged part of the control stream, and grows the
+    // buffer if the rest and the given number of bytes don't fit.
+    private void reserveControlOut(int length) {
+        final int acknowledged = controlOutAcknowledged - controlOutBase;
+        final int pending = controlOutEnd - controlOutAcknowledged;
+        if (pending + length > controlOut.length) {
+            final byte newControlOut[] = new byte[Math.max(controlOut.length * 2,
+                    pending + length)];
+            System.arraycopy(controlOut, acknowledged, newControlOut, 0, pending);
+            controlOut = newControlOut;
+        } else
+            System.arraycopy(controlOut, acknowledged, controlOut, 0, pending);
+        controlOutBase = controlOutAcknowledged;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        sendPacket();
+        sendControlChunks();
+    }
+
+    private void sendControlChunks() throws IOException {
+        while (controlOutNext < controlOutEnd &&
+                controlOutNext - controlOutAcknowledged < CONTROL_WINDOW)
+            sendPacket();
+    }
+
+    private void sendPacket() throws IOException {
+        final int sequence = nextSequence++;
+        sendBuffer.clear();
+        sendBuffer.put(DATA_PACKET).putInt(sequence).putInt(lastReceivedSequence)
+                .putInt(receivedBits).putInt(inputsReceived).putInt(controlInEnd);
+        final int inputCount = Math.min(inputsSent - inputsAcknowledged,
+                MAX_INPUTS_PER_PACKET);
+        sendBuffer.putInt(inputsAcknowledged).put((byte)inputCount);
+        for (int i = 0; i < inputCount; i++) {
+            final int entry = (inputsAcknowledged + i) & INPUT_LOG_MASK;
+            sendBuffer.putInt(inputLogFrames[entry]).put(inputLogButtons[entry])
+                    .putInt(inputLogControlCounts[entry]);
+        }
+        final int chunkLength = Math.min(MAX_CHUNK_SIZE, Math.min(
+                controlOutEnd - controlOutNext,
+                controlOutAcknowledged + CONTROL_WINDOW - controlOutNext));
+        final int entry = sequence & SENT_PACKETS_MASK;
+        sentSequences[entry] = sequence;
+        sentChunkOffsets[entry] = controlOutNext;
+        sentChunkLengths[entry] = Math.max(chunkLength, 0);
+        sentIsResolved[entry] = false;
+        sendBuffer.putInt(controlOutNext).putShort((short)Math.max(chunkLength, 0));
+        if (chunkLength > 0) {
+            sendBuffer.put(controlOut, controlOutNext - controlOutBase, chunkLength);
+            controlOutNext += chunkLength;
+        }
+        isAckPending = false;
+        lastSendTime = System.nanoTime();
+        sendBuffer.flip();
+        write(sendBuffer);
+    }
+
+    // Lost packets (see lossRate) count as sent.
+    private void write(ByteBuffer packet) throws IOException {
+        bytesSent += packet.remaining();
+        if (lossRate > 0 && lossRandom.nextDouble() < lossRate)
+            return;
+        try {
+            channel.write(packet);
+        } catch (PortUnreachableException ex) {
+            // The peer isn't there (yet, or anymore); it may time out
+        }
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!isClosed && channel.isConnected()) {
+                sendBuffer.clear();
+                sendBuffer.put(CLOSE_PACKET).putInt(nextSequence++).putInt(0)
+                        .putInt(0).putInt(0).putInt(0);
+                sendBuffer.flip();
+                try {
+                    for (int i = 0; i < 3; i++) {
+                        write(sendBuffer);
+                        sendBuffer.rewind();
+                    }
+                } catch (IOException ex) {
+
+                }
+            }
+            isClosed = true;
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package nesemu;
+
+/* Video filters post-process the frames output by the PPU before they are
+ * presented on screen, usually upscaling them by an integer factor. They work
+ * on frames already converted to ARGB, and must be able to process any band
+ * of rows on its own, so that VideoPostProcessor may filter several bands in
+ * parallel.
+ */
+
+public interface VideoFilter {
+    // The width and height of the filtered frame are those of the source frame
+    // multiplied by this factor.
+    int getScale();
+
+    /* Filters rows [firstRow, lastRow) of src (whose size is width x height)
+     * into the corresponding getScale() * (lastRow - firstRow) rows of dst.
+     * Any row of src may be read, but only the rows of dst corresponding to
+     * the band may be written.
+     */
+    void apply(int[] src, int width, int height, int[] dst, int firstRow, int lastRow);
+}
@@ -0,0 +1,245 @@
+package nesemu;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/* Sits between the PPU and the screen: frames received through frameReady()
+ * are converted to ARGB and filtered (see VideoFilter) on a small fork-join
+ * pool, and the result is published as a BufferedImage.
+ *
+ * The only work done on the emulation thread is copying the palette-index
+ * frame (61,440 bytes), so filters never add to its frame time. If a frame
+ * arrives while the previous one is still being processed, it replaces any
+ * frame waiting to be processed, i. e. frames are dropped rather than queued.
+ * Each stage is split into bands of rows processed in parallel.
+ *
+ * Most frames only differ from the previous one in a few tiles, so each frame
+ * is compared to the last one presented in bands of 8 scanlines (the height of
+ * a background tile), and the listener is only notified of the bands that
+ * changed. This way, only those parts of the screen need to be repainted.
+ *
+ * Frames are filtered into one of three images, so that the newest one can be
+ * filtered into while the EDT paints another one (see acquireImage()) and a
+ * third holds the last frame published, which the EDT will paint next.
+ */
+
+public class VideoPostProcessor implements FrameSink {
+    private static final int WIDTH = PPU.SCREEN_WIDTH;
+    private static final int HEIGHT = PPU.SCREEN_HEIGHT;
+    private static final int MIN_ROWS_PER_BAND = 16;
+    private static final int ROWS_PER_DIFF_BAND = 8;
+
+    /* Notified (from the pool's threads) whenever a new frame is published,
+     * once for each run of consecutive source rows [firstRow, lastRow) that
+     * changed; rows are given in unfiltered frame coordinates.
+     */
+    public interface UpdateListener {
+        void rowsUpdated(int firstRow, int lastRow);
+    }
+
+    private final ForkJoinPool pool;
+    private final UpdateListener updateListener;
+
+    // Latest frame received from the emulation thread, guarded by this.
+    private final byte pendingPixels[];
+    private final byte pendingEmphasis[];
+    private boolean isFramePending;
+    private final AtomicBoolean isProcessing;
+
+    // Only accessed from the pool.
+    private byte pixels[];
+    private byte emphasis[];
+    private byte previousPixels[];
+    private byte previousEmphasis[];
+    private VideoFilter previousFilter;
+    private final int argb[];
+
+    private volatile VideoFilter filter;
+    // Guarded by themselves, as are the published image and the one being
+    // painted (null if none).
+    private final BufferedImage images[];
+    private BufferedImage image;
+    private BufferedImage paintedImage;
+
+    public VideoPostProcessor(UpdateListener updateListener) {
+        this.updateListener = updateListener;
+        pool = new ForkJoinPool(Math.max(1,
+                Math.min(4, Runtime.getRuntime().availableProcessors() - 1)));
+        pendingPixels = new byte[WIDTH * HEIGHT];
+        pendingEmphasis = new byte[HEIGHT];
+        isProcessing = new AtomicBoolean(false);
+        pixels = new byte[WIDTH * HEIGHT];
+        emphasis = new byte[HEIGHT];
+        previousPixels = new byte[WIDTH * HEIGHT];
+        previousEmphasis = new byte[HEIGHT];
+        argb = new int[WIDTH * HEIGHT];
+        images = new BufferedImage[3];
+        setFilter(new NearestNeighborFilter(1));
+    }
+
+    public final void setFilter(VideoFilter filter) {
+        this.filter = filter;
+    }
+
+    public VideoFilter getFilter() {
+        return filter;
+    }
+
+    /* The most recently filtered frame, or null if none has been produced
+     * yet. Called from the EDT, which must not touch the image after calling
+     * releaseImage(), as it will then be filtered into again.
+     */
+    public BufferedImage acquireImage() {
+        synchronized (images) {
+            paintedImage = image;
+            return paintedImage;
+        }
+    }
+
+    public void releaseImage() {
+        synchronized (images) {
+            paintedImage = null;
+        }
+    }
+
+    // An image neither published nor being painted, of the given width (out
+    // of three, at least one is neither).
+    private BufferedImage takeBackImage(int width, int height) {
+        synchronized (images) {
+            for (int i = 0; ; i++) {
+                if (images[i] != null &&
+                        (images[i] == image || images[i] == paintedImage))
+                    continue;
+                if (images[i] == null || images[i].getWidth() != width)
+                    images[i] = new BufferedImage(width, height,
+                            BufferedImage.TYPE_INT_ARGB);
+                return images[i];
+            }
+        }
+    }
+
+    private void publishImage(BufferedImage filteredImage) {
+        synchronized (images) {
+            image = filteredImage;
+        }
+    }
+
+    @Override
+    public void frameReady(byte[] pixels, byte[] scanlineEmphasis) {
+        synchronized (this) {
+            System.arraycopy(pixels, 0, pendingPixels, 0, pendingPixels.length);
+            System.arraycopy(scanlineEmphasis, 0, pendingEmphasis, 0,
+                    pendingEmphasis.length);
+            isFramePending = true;
+        }
+        if (isProcessing.compareAndSet(false, true))
+            pool.execute(this::processPendingFrames);
+    }
+
+    private void processPendingFrames() {
+        do {
+            while (takePendingFrame())
+                processFrame();
+            isProcessing.set(false);
+            // A frame may have arrived after the last check but before the
+            // flag was cleared; in that case, nobody else will process it.
+        } while (hasPendingFrame() && isProcessing.compareAndSet(false, true));
+    }
+
+    private synchronized boolean takePendingFrame() {
+        if (!isFramePending)
+            return false;
+        System.arraycopy(pendingPixels, 0, pixels, 0, pixels.length);
+        System.arraycopy(pendingEmphasis, 0, emphasis, 0, emphasis.length);
+        isFramePending = false;
+        return true;
+    }
+
+    private synchronized boolean hasPendingFrame() {
+        return isFramePending;
+    }
+
+    private void processFrame() {
+        final VideoFilter currentFilter = filter;
+        final int scale = currentFilter.getScale();
+        final BufferedImage backImage = takeBackImage(WIDTH * scale, HEIGHT * scale);
+        final int[] dst = ((DataBufferInt)backImage.getRaster().getDataBuffer()).getData();
+        // Filters may read any source row, so the whole frame must be
+        // converted before filtering starts.
+        pool.invoke(new Band(0, HEIGHT, (firstRow, lastRow) ->
+                Palette.toARGB(pixels, emphasis, argb, firstRow, lastRow)));
+        pool.invoke(new Band(0, HEIGHT, (firstRow, lastRow) ->
+                currentFilter.apply(argb, WIDTH, HEIGHT, dst, firstRow, lastRow)));
+        publishImage(backImage);
+        notifyUpdatedRows(currentFilter);
+        previousFilter = currentFilter;
+        byte swap[] = previousPixels;
+        previousPixels = pixels;
+        pixels = swap;
+        swap = previousEmphasis;
+        previousEmphasis = emphasis;
+        emphasis = swap;
+    }
+
+    private void notifyUpdatedRows(VideoFilter currentFilter) {
+        if (currentFilter != previousFilter) {
+            updateListener.rowsUpdated(0, HEIGHT);
+            return;
+        }
+        int firstUpdatedRow = -1;
+        for (int row = 0; row < HEIGHT; row += ROWS_PER_DIFF_BAND) {
+            final int lastRow = Math.min(row + ROWS_PER_DIFF_BAND, HEIGHT);
+            // Arrays.equals compares whole machine words at a time.
+            final boolean changed =
+                    !Arrays.equals(pixels, row * WIDTH, lastRow * WIDTH,
+                            previousPixels, row * WIDTH, lastRow * WIDTH) ||
+                    !Arrays.equals(emphasis, row, lastRow, previousEmphasis, row, lastRow);
+            if (changed && firstUpdatedRow < 0)
+                firstUpdatedRow = row;
+            else if (!changed && firstUpdatedRow >= 0) {
+                notifyUpdatedRows(firstUpdatedRow, row);
+                firstUpdatedRow = -1;
+            }
+        }
+        if (firstUpdatedRow >= 0)
+            notifyUpdatedRows(firstUpdatedRow, HEIGHT);
+    }
+
+    // Filters such as Scale2x look at the rows above and below each pixel,
+    // so one extra row is included on each side of the changed ones.
+    private void notifyUpdatedRows(int firstRow, int lastRow) {
+        updateListener.rowsUpdated(Math.max(firstRow - 1, 0),
+                Math.min(lastRow + 1, HEIGHT));
+    }
+
+    private interface RowRangeOperation {
+        void run(int firstRow, int lastRow);
+    }
+
+    private static class Band extends RecursiveAction {
+        private final int firstRow;
+        private final int lastRow;
+        private final RowRangeOperation operation;
+
+        Band(int firstRow, int lastRow, RowRangeOperation operation) {
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.operation = operation;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastRow - firstRow <= MIN_ROWS_PER_BAND)
+                operation.run(firstRow, lastRow);
+            else {
+                final int middleRow = (firstRow + lastRow) / 2;
+                invokeAll(new Band(firstRow, middleRow, operation),
+                        new Band(middleRow, lastRow, operation));
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package nesemu;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/* iNES images stored inside zip archives are read straight from the archive
+ * (no temporary files), and kept decompressed in a least-recently-used cache,
+ * so that loading the same game again doesn't decompress it again.
+ *
+ * Images are keyed by archive path, entry name and the archive's modification
+ * time, so an archive that changes on disk is read again. The total size of
+ * the cached images is bounded by the nesemu.zipCacheMB system property (16 MB
+ * by default); the least recently used images are evicted first.
+ */
+
+public final class ZipImageCache {
+    private static final long BUDGET_BYTES =
+            (long)Integer.getInteger("nesemu.zipCacheMB", 16) << 20;
+
+    private static final Map<String, byte[]> IMAGES =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private static long cachedBytes;
+
+    private ZipImageCache() {
+
+    }
+
+    // Whether the path refers to an entry inside an archive, i. e. has the
+    // form "archive.zip!/entry.nes".
+    public static boolean isArchiveEntryPath(String path) {
+        return path.contains(RomLibrary.ARCHIVE_ENTRY_SEPARATOR);
+    }
+
+    /* Returns the path of the first iNES entry in the archive, in the form
+     * accepted by getImage().
+     */
+    public static String findFirstROM(String archivePath) throws IOException {
+        try (ZipFile zipFile = new ZipFile(archivePath)) {
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && RomLibrary.isROM(entry.getName()))
+                    return archivePath + RomLibrary.ARCHIVE_ENTRY_SEPARATOR +
+                            entry.getName();
+            }
+        }
+        throw new FileNotFoundException("No iNES files in " + archivePath);
+    }
+
+    // Returns the decompressed contents of an archive entry, given a path of
+    // the form "archive.zip!/entry.nes". The array must not be modified.
+    public static byte[] getImage(String path) throws IOException {
+        final int separator = path.indexOf(RomLibrary.ARCHIVE_ENTRY_SEPARATOR);
+        final String archivePath = path.substring(0, separator);
+        final String entryName = path.substring(
+                separator + RomLibrary.ARCHIVE_ENTRY_SEPARATOR.length());
+        final File archive = new File(archivePath);
+        if (!archive.isFile())
+            throw new FileNotFoundException(archivePath);
+        final String key = path + "@" + archive.lastModified();
+        synchronized (IMAGES) {
+            final byte cachedImage[] = IMAGES.get(key);
+            if (cachedImage != null)
+                return cachedImage;
+        }
+        final byte image[];
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            final ZipEntry entry = zipFile.getEntry(entryName);
+            if (entry == null)
+                throw new FileNotFoundException(path);
+            try (InputStream in = zipFile.getInputStream(entry)) {
+                image = in.readAllBytes();
+            }
+        }
+        synchronized (IMAGES) {
+            if (IMAGES.put(key, image) == null)
+                cachedBytes += image.length;
+            final Iterator<byte[]> iterator = IMAGES.values().iterator();
+            while (cachedBytes > BUDGET_BYTES && iterator.hasNext()) {
+                final byte evictedImage[] = iterator.next();
+                // The newest image is always kept, even if it's over budget.
+                if (evictedImage == image)
+                    break;
+                cachedBytes -= evictedImage.length;
+                iterator.remove();
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,97 @@
+package nesemu;
+
+import java.util.Random;
+
+/* Times NearestNeighborFilter at scales 1 to 4, with its unrolled loops and
+ * with the Arrays.fill loop used for other scales, on a whole frame of random
+ * colors (and, for comparison, the palette conversion that precedes every
+ * filter). Each measurement is repeated a few times, alternating between the
+ * two, after letting the JIT compiler warm up; the best round is reported.
+ *
+ * Run as a plain program, optionally with the number of frames per round:
+ *
+ *   java -cp build/classes:build/test/classes nesemu.NearestNeighborFilterBenchmark 2000
+ */
+
+public class NearestNeighborFilterBenchmark {
+    private static final int WIDTH = PPU.SCREEN_WIDTH;
+    private static final int HEIGHT = PPU.SCREEN_HEIGHT;
+    private static final int MAX_SCALE = 4;
+    private static final int ROUNDS = 5;
+
+    private final byte pixels[];
+    private final byte emphasis[];
+    private final int argb[];
+    private final int dst[];
+    // Keeps the JIT compiler from dropping the work being timed.
+    private int checksum;
+
+    private NearestNeighborFilterBenchmark() {
+        final Random random = new Random(6502);
+        pixels = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (byte)random.nextInt(64);
+        emphasis = new byte[HEIGHT];
+        argb = new int[WIDTH * HEIGHT];
+        Palette.toARGB(pixels, emphasis, argb);
+        dst = new int[WIDTH * HEIGHT * MAX_SCALE * MAX_SCALE];
+    }
+
+    // Average time per frame, in milliseconds.
+    private double timeFilter(VideoFilter filter, int frames) {
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            filter.apply(argb, WIDTH, HEIGHT, dst, 0, HEIGHT);
+            checksum += dst[i % dst.length];
+        }
+        return (System.nanoTime() - startTime) / 1e6 / frames;
+    }
+
+    private double timePalette(int frames) {
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            Palette.toARGB(pixels, emphasis, argb, 0, HEIGHT);
+            checksum += argb[i % argb.length];
+        }
+        return (System.nanoTime() - startTime) / 1e6 / frames;
+    }
+
+    private void run(int frames) {
+        System.out.printf("%d frames per round, best of %d rounds%n", frames, ROUNDS);
+        System.out.printf("Palette conversion: %.3f ms%n", best(() -> timePalette(frames)));
+        System.out.printf("%-6s %12s %12s %9s%n", "Scale", "Unrolled", "Arrays.fill",
+                "Speedup");
+        for (int scale = 1; scale <= MAX_SCALE; scale++) {
+            final VideoFilter unrolled = new NearestNeighborFilter(scale, true);
+            final VideoFilter filled = new NearestNeighborFilter(scale, false);
+            // Warm up both before timing either.
+            timeFilter(unrolled, frames);
+            timeFilter(filled, frames);
+            double bestUnrolled = Double.MAX_VALUE, bestFilled = Double.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                bestUnrolled = Math.min(bestUnrolled, timeFilter(unrolled, frames));
+                bestFilled = Math.min(bestFilled, timeFilter(filled, frames));
+            }
+            System.out.printf("%-6s %9.3f ms %9.3f ms %8.1fx%n", scale + "x",
+                    bestUnrolled, bestFilled, bestFilled / bestUnrolled);
+        }
+        System.out.println("(checksum " + checksum + ")");
+    }
+
+    private interface Measurement {
+        double run();
+    }
+
+    private static double best(Measurement measurement) {
+        measurement.run();
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++)
+            best = Math.min(best, measurement.run());
+        return best;
+    }
+
+    public static void main(String[] args) {
+        final int frames = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        new NearestNeighborFilterBenchmark().run(frames);
+    }
+}
@@ -0,0 +1,155 @@
+package nesemu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/* Round trips through StateBuffer: after running a game for a while, a
+ * snapshot is saved and the game runs on for some frames. Once the snapshot is
+ * loaded back, running the same frames with the same inputs must produce the
+ * exact same pictures and end in the exact same state.
+ *
+ * Besides nestest (mapper 0, CHR-ROM, no PRG-RAM), this is checked with a
+ * small MMC1 program built here, which has battery-backed PRG-RAM and CHR-RAM
+ * and writes to both every frame, so that they're part of the snapshot.
+ */
+
+public class StateBufferTest {
+    private static final int FRAMES_BEFORE_SAVE = 120;
+    private static final int FRAMES_AFTER_SAVE = 180;
+
+    private static final int PRG_ROM_BANK_SIZE = 16384;
+    private static final int PRG_ROM_BANKS = 2;
+
+    // Both banks hold the same program: the main loop keeps writing to
+    // PRG-RAM, and the NMI handler writes to CHR-RAM, changes the backdrop
+    // color and reads the controller, whose state is mixed into the next
+    // writes.
+    private static final int RESET_ADDRESS = 0xC000;
+    private static final int NMI_ADDRESS = 0xC100;
+    private static final int RESET_HANDLER[] = {
+        0x78,                   // SEI
+        0xD8,                   // CLD
+        0xA2, 0xFF,             // LDX #$FF
+        0x9A,                   // TXS
+        0xA9, 0x80,             // LDA #$80
+        0x8D, 0x00, 0x20,       // STA $2000 (enable NMI)
+        0xA9, 0x1E,             // LDA #$1E
+        0x8D, 0x01, 0x20,       // STA $2001 (enable rendering)
+        0xE6, 0x10,             // loop: INC $10
+        0xA6, 0x10,             // LDX $10
+        0xA5, 0x10,             // LDA $10
+        0x45, 0x11,             // EOR $11
+        0x45, 0x12,             // EOR $12
+        0x9D, 0x00, 0x60,       // STA $6000,X
+        0x4C, 0x0F, 0xC0        // JMP loop
+    };
+    private static final int NMI_HANDLER[] = {
+        0xE6, 0x11,             // INC $11
+        0xAD, 0x02, 0x20,       // LDA $2002
+        0xA5, 0x11,             // LDA $11
+        0x29, 0x1F,             // AND #$1F
+        0x8D, 0x06, 0x20,       // STA $2006
+        0xA5, 0x10,             // LDA $10
+        0x8D, 0x06, 0x20,       // STA $2006
+        0x8D, 0x07, 0x20,       // STA $2007
+        0xA9, 0x3F,             // LDA #$3F
+        0x8D, 0x06, 0x20,       // STA $2006
+        0xA9, 0x00,             // LDA #$00
+        0x8D, 0x06, 0x20,       // STA $2006
+        0xA5, 0x11,             // LDA $11
+        0x8D, 0x07, 0x20,       // STA $2007 (backdrop color)
+        0xA9, 0x01,             // LDA #$01
+        0x8D, 0x16, 0x40,       // STA $4016
+        0xA9, 0x00,             // LDA #$00
+        0x8D, 0x16, 0x40,       // STA $4016
+        0xAD, 0x16, 0x40,       // LDA $4016
+        0x65, 0x12,             // ADC $12
+        0x85, 0x12,             // STA $12
+        0x40                    // RTI
+    };
+
+    @Test
+    public void testRoundTripWithCHRROM() throws IOException,
+            UnsupportedMapperException {
+        final NES nes = new NES("roms/nestest.nes");
+        assertFalse(nes.cartridge.hasPrgRAM);
+        assertRoundTrip(nes);
+    }
+
+    @Test
+    public void testRoundTripWithPrgRAMAndCHRRAM() throws UnsupportedMapperException {
+        final NES nes = new NES(Cartridge.fromINESBuffer(
+                ByteBuffer.wrap(buildMMC1Image()), "StateBufferTest"));
+        assertTrue(nes.cartridge.hasPrgRAM && nes.cartridge.hasChrRAM);
+        assertRoundTrip(nes);
+    }
+
+    private static void assertRoundTrip(NES nes) {
+        nes.setFrameSink(FrameSink.DISCARD);
+        nes.reset();
+        runFrames(nes, 0, FRAMES_BEFORE_SAVE);
+        final StateBuffer saved = new StateBuffer(nes);
+        nes.saveState(saved);
+
+        final int frameHashes[] = runFrames(nes, FRAMES_BEFORE_SAVE, FRAMES_AFTER_SAVE);
+        final byte state[] = getState(nes);
+        nes.loadState(saved);
+        final int replayedFrameHashes[] = runFrames(nes, FRAMES_BEFORE_SAVE,
+                FRAMES_AFTER_SAVE);
+        assertArrayEquals(frameHashes, replayedFrameHashes);
+        assertArrayEquals(state, getState(nes));
+        // Make sure the frames compared aren't all the same.
+        assertTrue(Arrays.stream(frameHashes).distinct().count() > 1);
+    }
+
+    // Returns the hash of each frame.
+    private static int[] runFrames(NES nes, int firstFrame, int frameCount) {
+        final int hashes[] = new int[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            nes.controller.setButtonStates((byte)((firstFrame + i) * 37), (byte)0);
+            nes.runUntilFrameReady();
+            hashes[i] = Arrays.hashCode(nes.getFrame());
+        }
+        return hashes;
+    }
+
+    private static byte[] getState(NES nes) {
+        final StateBuffer state = new StateBuffer(nes);
+        nes.saveState(state);
+        return Arrays.copyOf(state.array(), state.size());
+    }
+
+    // An iNES image for mapper 1, with battery-backed PRG-RAM and CHR-RAM.
+    private static byte[] buildMMC1Image() {
+        final byte image[] = new byte[INESHeader.SIZE + PRG_ROM_BANKS * PRG_ROM_BANK_SIZE];
+        image[0] = 'N';
+        image[1] = 'E';
+        image[2] = 'S';
+        image[3] = 0x1A;
+        image[4] = PRG_ROM_BANKS;
+        image[5] = 0;                   // CHR-RAM
+        image[6] = 0x12;                // Mapper 1, battery-backed PRG-RAM
+        for (int bank = 0; bank < PRG_ROM_BANKS; bank++) {
+            final int bankStart = INESHeader.SIZE + bank * PRG_ROM_BANK_SIZE;
+            put(image, bankStart, RESET_HANDLER);
+            put(image, bankStart + NMI_ADDRESS - RESET_ADDRESS, NMI_HANDLER);
+            // NMI, reset and IRQ vectors.
+            put(image, bankStart + PRG_ROM_BANK_SIZE - 6, new int[] {
+                NMI_ADDRESS & 0xFF, NMI_ADDRESS >>> 8,
+                RESET_ADDRESS & 0xFF, RESET_ADDRESS >>> 8,
+                RESET_ADDRESS & 0xFF, RESET_ADDRESS >>> 8
+            });
+        }
+        return image;
+    }
+
+    private static void put(byte[] image, int offset, int[] bytes) {
+        for (int i = 0; i < bytes.length; i++)
+            image[offset + i] = (byte)bytes[i];
+    }
+}